@@ -0,0 +1,380 @@
+package net.contrapt.dhlp.common;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a statement many times on several connections at once and measures how long each run takes,
+ * to see how a query holds up under concurrency.  Each worker borrows its own connection and prepares
+ * the statement once; runs are shared out between the workers and every row of a result is read.  The
+ * first runs warm up the connections and database and aren't measured.  A statement with parameters is
+ * given sets of values, one set per line, which are used in turn
+ */
+public class Benchmark {
+
+   //
+   // PROPERTIES
+   //
+   // Percentiles reported, as in HdrHistogram's percentile distribution
+   private static final double[] PERCENTILES = {50, 75, 90, 95, 99, 99.9, 99.99, 100};
+   // Every run reads its rows this many at a time, so runs are measured alike whatever the driver does
+   private static final int FETCH_SIZE = 1000;
+
+   private ConnectionPool pool;
+   private String sql;
+   private SqlParameters parameters;
+   private List<String[]> parameterSets = new ArrayList<String[]>();
+   private int iterations;
+   private int concurrency;
+   private int warmup;
+   private AtomicInteger next = new AtomicInteger();
+   private AtomicInteger completed = new AtomicInteger();
+   private AtomicInteger errors = new AtomicInteger();
+   private AtomicLong rows = new AtomicLong();
+   // For each measured run: when it started relative to the start of the benchmark, how long it
+   // took, and the worker which ran it; nanoseconds, latency negative for a failed run
+   private long[] starts;
+   private long[] latencies;
+   private int[] workers;
+   private volatile String firstError;
+   private volatile boolean cancelled;
+   private volatile long startTime;
+   private volatile long endTime;
+   // Span of the measured runs (System.nanoTime())
+   private AtomicLong measureStart = new AtomicLong(Long.MAX_VALUE);
+   private AtomicLong measureEnd = new AtomicLong(Long.MIN_VALUE);
+   private long origin;
+
+   //
+   // CONSTRUCTORS
+   //
+   public Benchmark(ConnectionPool pool, String sql, int iterations, int concurrency, int warmup) {
+      this.pool = pool;
+      this.sql = sql;
+      this.parameters = SqlParameters.parse(sql);
+      this.iterations = Math.max(1, iterations);
+      this.concurrency = Math.max(1, Math.min(concurrency, pool.getMaxConnections()));
+      this.warmup = Math.max(0, warmup);
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Set the parameter values, one set per line with the values separated by commas (csv quoting
+    * allowed) or tabs
+    */
+   public void setParameterSets(String text) {
+      parameterSets.clear();
+      if (text == null || text.trim().length() == 0) return;
+      CsvImporter.CsvReader reader = new CsvImporter.CsvReader(new StringReader(text), text.indexOf('\t') >= 0);
+      try {
+         String[] set;
+         while ((set = reader.read()) != null) {
+            if (set.length == 1 && set[0].trim().length() == 0) continue;
+            if (set.length != parameters.getNames().size()) {
+               throw new IllegalStateException("Parameter set " + reader.getLine() + " has " + set.length + " values but the statement has "
+                     + parameters.getNames().size() + " parameters " + parameters.getNames());
+            }
+            parameterSets.add(set);
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Error reading parameter sets", e);
+      }
+   }
+
+   /**
+    * Whether the statement needs parameter sets
+    */
+   public boolean hasParameters() {
+      return !parameters.isEmpty();
+   }
+
+   /**
+    * Run the benchmark, returning when every run is done, the benchmark is cancelled or a worker
+    * can't get a connection
+    */
+   public void run() {
+      if (hasParameters() && parameterSets.isEmpty()) {
+         throw new IllegalStateException("The statement has parameters " + parameters.getNames() + "; give at least one set of values");
+      }
+      next.set(0);
+      completed.set(0);
+      errors.set(0);
+      rows.set(0);
+      measureStart.set(Long.MAX_VALUE);
+      measureEnd.set(Long.MIN_VALUE);
+      starts = new long[iterations];
+      latencies = new long[iterations];
+      workers = new int[iterations];
+      firstError = null;
+      cancelled = false;
+      startTime = System.currentTimeMillis();
+      endTime = 0;
+      origin = System.nanoTime();
+      ExecutorService threads = Executors.newFixedThreadPool(concurrency, ConnectionPool.daemonThreads("dhlp-benchmark"));
+      try {
+         List<Future<?>> tasks = new ArrayList<Future<?>>();
+         for (int i = 0; i < concurrency; i++) {
+            final int worker = i + 1;
+            tasks.add(threads.submit(new Runnable() {
+               public void run() {
+                  work(worker);
+               }
+            }));
+         }
+         for (Future<?> task : tasks) {
+            task.get();
+         }
+      } catch (Exception e) {
+         // Stop the other workers when one fails
+         cancelled = true;
+         throw new IllegalStateException("Error running benchmark", e);
+      } finally {
+         threads.shutdownNow();
+         endTime = System.currentTimeMillis();
+         if (!SqlScript.isReadOnly(sql)) pool.dataChanged();
+      }
+   }
+
+   /**
+    * Stop starting new runs; runs in progress finish
+    */
+   public void cancel() {
+      cancelled = true;
+   }
+
+   public String getSql() {
+      return sql;
+   }
+
+   public int getIterations() {
+      return iterations;
+   }
+
+   public int getConcurrency() {
+      return concurrency;
+   }
+
+   public int getWarmup() {
+      return warmup;
+   }
+
+   /**
+    * Describe how far the benchmark has got
+    */
+   public String getProgress() {
+      long elapsed = ((endTime > 0) ? endTime : System.currentTimeMillis()) - startTime;
+      String state = cancelled ? "cancelled" : (endTime > 0) ? "done" : "running";
+      int done = Math.max(0, completed.get() - warmup);
+      return String.format("%s: %,d of %,d runs (+%,d warm-up) on %d connections, %,d errors in %.1fs",
+            state, done, iterations, warmup, concurrency, errors.get(), elapsed / 1000.0);
+   }
+
+   /**
+    * Describe the results: throughput and the latency percentile distribution of the measured runs
+    */
+   public String getReport() {
+      long[] measured = measuredLatencies();
+      StringBuilder report = new StringBuilder();
+      report.append(getProgress()).append('\n');
+      report.append(sql).append('\n').append('\n');
+      if (measured.length == 0) {
+         if (firstError != null) report.append("First error: ").append(firstError).append('\n');
+         return report.toString();
+      }
+      double seconds = Math.max(1, measureEnd.get() - measureStart.get()) / 1e9;
+      report.append(String.format("Throughput: %,.1f runs/s (%,d runs in %.3fs)%n", measured.length / seconds, measured.length, seconds));
+      report.append(String.format("Rows: %,d (%,.1f per run)%n", rows.get(), (double) rows.get() / Math.max(1, completed.get())));
+      double total = 0;
+      for (long latency : measured) total += latency;
+      report.append(String.format("Latency mean: %.3fms  stddev: %.3fms%n", total / measured.length / 1e6, stddev(measured, total / measured.length) / 1e6));
+      report.append('\n');
+      report.append(String.format("%12s %10s %10s %14s%n", "Value (ms)", "Percentile", "TotalCount", "1/(1-Percentile)"));
+      for (double percentile : PERCENTILES) {
+         int rank = Math.max(1, (int) Math.ceil(measured.length * percentile / 100.0));
+         String inverse = (percentile >= 100) ? "" : String.format("%.2f", 1 / (1 - percentile / 100.0));
+         report.append(String.format("%12.3f %10.6f %10d %14s%n", measured[rank - 1] / 1e6, percentile / 100.0, rank, inverse));
+      }
+      report.append('\n').append(histogram(measured));
+      if (firstError != null) report.append('\n').append("First error: ").append(firstError).append('\n');
+      return report.toString();
+   }
+
+   /**
+    * Return every measured run in order as {run, worker, start, latency}, the start relative to the
+    * start of the benchmark and both in nanoseconds; latency is negative for a failed run
+    */
+   public List<long[]> getSamples() {
+      List<long[]> samples = new ArrayList<long[]>();
+      for (int i = 0; latencies != null && i < latencies.length; i++) {
+         if (workers[i] != 0) samples.add(new long[]{i + 1, workers[i], starts[i], latencies[i]});
+      }
+      return samples;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Take runs until there are none left, on a connection of the worker's own.  Each run commits on
+    * its own, as a client would, rather than the worker holding one transaction open (and its locks)
+    * across all its runs
+    */
+   private void work(int worker) {
+      Connection db = pool.takeConnection(this);
+      if (db == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      PreparedStatement statement = null;
+      Boolean autoCommit = null;
+      try {
+         autoCommit = db.getAutoCommit();
+         if (!autoCommit) db.setAutoCommit(true);
+         statement = pool.prepareStatement(db, parameters.getSql());
+         // The statement may be a cached one last used with a row limit
+         statement.setMaxRows(0);
+         try {
+            statement.setFetchSize(FETCH_SIZE);
+         } catch (SQLException e) {
+            // Only a hint, which some drivers reject
+         }
+         StatementWatchdog.setQueryTimeout(statement, pool.getQueryTimeout());
+         int[] types = parameters.getTypes(statement);
+         List<Object[]> sets = new ArrayList<Object[]>();
+         for (String[] set : parameterSets) {
+            sets.add(parameters.convert(set, types));
+         }
+         int run;
+         while (!cancelled && (run = next.getAndIncrement()) < warmup + iterations) {
+            if (!sets.isEmpty()) parameters.bind(statement, sets.get(run % sets.size()), types);
+            long start = System.nanoTime();
+            long latency = runOnce(statement);
+            long end = System.nanoTime();
+            completed.incrementAndGet();
+            if (run < warmup) continue;
+            int measured = run - warmup;
+            starts[measured] = start - origin;
+            latencies[measured] = latency;
+            workers[measured] = worker;
+            min(measureStart, start);
+            max(measureEnd, end);
+         }
+      } catch (SQLException e) {
+         throw new IllegalStateException("Error preparing benchmark statement\n" + sql, e);
+      } finally {
+         pool.releaseStatement(db, statement);
+         try {
+            if (autoCommit != null && !autoCommit) db.setAutoCommit(false);
+         } catch (SQLException e) {
+            System.err.println(getClass() + ".work(): " + e);
+         }
+         pool.returnConnection(db);
+      }
+   }
+
+   /**
+    * Run the statement and read all its rows, returning how long it took or -1 if it failed
+    */
+   private long runOnce(PreparedStatement statement) {
+      long start = System.nanoTime();
+      try {
+         boolean query = statement.execute();
+         long count = 0;
+         while (true) {
+            if (query) {
+               ResultSet results = statement.getResultSet();
+               try {
+                  while (results.next()) count++;
+               } finally {
+                  results.close();
+               }
+            } else if (statement.getUpdateCount() < 0) {
+               break;
+            } else {
+               count += statement.getUpdateCount();
+            }
+            query = statement.getMoreResults();
+         }
+         rows.addAndGet(count);
+         return System.nanoTime() - start;
+      } catch (SQLException e) {
+         errors.incrementAndGet();
+         if (firstError == null) firstError = e.toString();
+         return -1;
+      }
+   }
+
+   /**
+    * Return the latencies of the successful measured runs in order
+    */
+   private long[] measuredLatencies() {
+      if (latencies == null) return new long[0];
+      long[] measured = new long[latencies.length];
+      int count = 0;
+      for (int i = 0; i < latencies.length; i++) {
+         if (workers[i] != 0 && latencies[i] >= 0) measured[count++] = latencies[i];
+      }
+      measured = Arrays.copyOf(measured, count);
+      Arrays.sort(measured);
+      return measured;
+   }
+
+   /**
+    * Draw the distribution as bars, with buckets doubling in width from the fastest run
+    */
+   private static String histogram(long[] sorted) {
+      StringBuilder text = new StringBuilder();
+      int width = 50;
+      long lower = Math.max(1000, sorted[0]);
+      List<long[]> buckets = new ArrayList<long[]>();
+      int i = 0;
+      while (i < sorted.length) {
+         long upper = lower * 2;
+         int count = 0;
+         while (i < sorted.length && sorted[i] < upper) {
+            count++;
+            i++;
+         }
+         buckets.add(new long[]{lower, upper, count});
+         lower = upper;
+      }
+      long most = 1;
+      for (long[] bucket : buckets) most = Math.max(most, bucket[2]);
+      for (long[] bucket : buckets) {
+         int bar = (int) (bucket[2] * width / most);
+         char[] fill = new char[bar];
+         Arrays.fill(fill, '#');
+         text.append(String.format("%10.3f - %10.3fms %8d %s%n", bucket[0] / 1e6, bucket[1] / 1e6, bucket[2], new String(fill)));
+      }
+      return text.toString();
+   }
+
+   private static double stddev(long[] values, double mean) {
+      double sum = 0;
+      for (long value : values) sum += (value - mean) * (value - mean);
+      return Math.sqrt(sum / values.length);
+   }
+
+   private static void min(AtomicLong value, long candidate) {
+      long current = value.get();
+      while (candidate < current && !value.compareAndSet(current, candidate)) current = value.get();
+   }
+
+   private static void max(AtomicLong value, long candidate) {
+      long current = value.get();
+      while (candidate > current && !value.compareAndSet(current, candidate)) current = value.get();
+   }
+}
@@ -1,16 +1,39 @@
 package net.contrapt.dhlp.common;
 
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import net.contrapt.dhlp.model.ConnectionData;
 import net.contrapt.dhlp.model.DriverData;
 
-import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -21,11 +44,71 @@ public class ConnectionPool {
     //
     // PROPERTIES
     //
+    // Shared by all pools for background work on idle connections
+    private static ScheduledExecutorService housekeeper;
+    // Shared by all pools for opening connections in the background
+    private static ExecutorService connector;
+    private static final int CONNECTOR_THREADS = 4;
+    // Shared by all pools for closing connections without blocking the caller
+    private static ThreadPoolExecutor closer;
+    private static final int CLOSER_THREADS = 4;
+    private static final int CLOSER_QUEUE = 256;
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    // Closer threads stuck in a close are stood in for, up to this many threads in all
+    private static final int MAX_CLOSER_THREADS = 4 * CLOSER_THREADS;
+    private static final int CLOSE_QUEUED = 0;
+    private static final int CLOSE_RUNNING = 1;
+    private static final int CLOSE_DONE = 2;
+    private static final int CLOSE_ABANDONED = 3;
+    // Closes queued or running on the closer threads
+    private static final Set<CloseTask> closing = Collections.newSetFromMap(new ConcurrentHashMap<CloseTask, Boolean>());
+    // Runs the work of aborting a connection and its network timeouts
+    private static final Executor ABORTER = new Executor() {
+        private final ThreadFactory threads = daemonThreads("ConnectionPool.abort");
+
+        @Override
+        public void execute(Runnable command) {
+            threads.newThread(command).start();
+        }
+    };
+    private static final long HOUSEKEEPING_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    // Connection lifetimes are shortened by up to this fraction so they don't all expire together
+    private static final double LIFETIME_JITTER = 0.1;
+    // Placeholder in the url for the local port of an ssh tunnel when none is configured
+    public static final String SSH_LOCAL_PORT = "${sshLocalPort}";
+
     private DriverData driverData;
     private ConnectionData connectionData;
-    private Stack<Connection> connections;
-    private int maxConnections = 5;
-    private Session sshSession;
+    // Idle connections; most recently returned first so warm connections are reused
+    private Deque<PooledConnection> connections;
+    // Connections currently handed out to callers
+    private Map<Connection, PooledConnection> borrowed;
+    // One permit per connection that may be borrowed; fair so waiters are served in order
+    private PoolSemaphore permits;
+    private volatile int maxConnections;
+    private volatile long borrowTimeout;
+    private long validationInterval;
+    private int validationTimeout;
+    private long idleTimeout;
+    private long maxLifetime;
+    private int minIdle;
+    private int statementCacheSize;
+    private long leakDetectionThreshold;
+    // Owners of borrowed connections show up here once they have been garbage collected
+    private ReferenceQueue<Object> abandonedOwners = new ReferenceQueue<Object>();
+    // Background connections requested but not yet in the pool
+    private AtomicInteger pending = new AtomicInteger();
+    // Connections borrowers are opening, which hold a permit but aren't borrowed yet
+    private AtomicInteger opening = new AtomicInteger();
+    // Bumped on close so background connections opened before it are discarded
+    private volatile int generation;
+    // Set by close(); connections returned while closed are closed rather than kept
+    private volatile boolean closed;
+    // Bumped whenever something run on one of the connections may have changed data
+    private AtomicLong dataVersion = new AtomicLong();
+    private ScheduledFuture<?> housekeeping;
+    private PoolMetrics metrics;
+    private SshTunnelManager.Tunnel tunnel;
 
     //
     // Constructors
@@ -33,54 +116,255 @@ public class ConnectionPool {
     public ConnectionPool(DriverData driverData, ConnectionData connectionData) {
         this.driverData = driverData;
         this.connectionData = connectionData;
-        this.connections = new Stack<Connection>();
+        this.connections = new ConcurrentLinkedDeque<PooledConnection>();
+        this.borrowed = new ConcurrentHashMap<Connection, PooledConnection>();
+        this.maxConnections = Math.max(1, connectionData.getMaxConnections());
+        this.borrowTimeout = TimeUnit.SECONDS.toMillis(connectionData.getBorrowTimeout());
+        this.validationInterval = TimeUnit.SECONDS.toMillis(connectionData.getValidationInterval());
+        this.validationTimeout = connectionData.getValidationTimeout();
+        this.idleTimeout = TimeUnit.SECONDS.toMillis(connectionData.getIdleTimeout());
+        this.maxLifetime = TimeUnit.SECONDS.toMillis(connectionData.getMaxLifetime());
+        this.minIdle = Math.min(maxConnections, connectionData.getMinIdle() == null ? 0 : connectionData.getMinIdle());
+        this.statementCacheSize = connectionData.getStatementCacheSize();
+        this.leakDetectionThreshold = TimeUnit.SECONDS.toMillis(connectionData.getLeakDetectionThreshold());
+        this.permits = new PoolSemaphore(maxConnections);
+        this.metrics = new PoolMetrics(this);
     }
 
+    /**
+     * Borrow a connection from the pool, waiting up to the borrow timeout if the maximum number of
+     * connections are already in use; returns null if a new connection could not be created
+     */
     public Connection takeConnection() {
-        if (connectionData.isSsh()) {
-            ensureSshSession();
+        return takeConnection(null);
+    }
+
+    /**
+     * Borrow a connection on behalf of an owner; if the owner is garbage collected without returning
+     * the connection, the connection is closed and its place in the pool reclaimed
+     */
+    public Connection takeConnection(Object owner) {
+        if (closed) throw new IllegalStateException("Connection pool for " + getName() + " has been closed");
+        acquirePermit();
+        startHousekeeping();
+        PooledConnection pooled = null;
+        try {
+            if (connectionData.isSsh()) {
+                ensureSshSession();
+            }
+            // Reuse an idle connection if there is a good one
+            while (pooled == null) {
+                PooledConnection idle = connections.pollFirst();
+                if (idle == null) break;
+                if (!idle.isExpired(System.currentTimeMillis()) && isValid(idle)) pooled = idle;
+                else closeConnection(idle.connection);
+            }
+            if (pooled == null) {
+                opening.incrementAndGet();
+                try {
+                    pooled = connection();
+                } finally {
+                    opening.decrementAndGet();
+                }
+            }
+        } finally {
+            if (pooled == null) permits.release();
         }
-        Connection connection = null;
-        if (!connections.empty()) {
-            connection = connections.pop();
-        } else {
-            connection = connection();
+        if (pooled == null) return null;
+        Throwable borrowSite = (leakDetectionThreshold > 0) ? new Throwable("Connection to " + getName() + " borrowed here") : null;
+        OwnerReference ownerReference = (owner == null) ? null : new OwnerReference(owner, pooled, abandonedOwners);
+        pooled.borrowed(borrowSite, ownerReference);
+        borrowed.put(pooled.connection, pooled);
+        ensureMinIdle();
+        return pooled.connection;
+    }
+
+    /**
+     * Prepare a forward only, read only statement on a borrowed connection, reusing a cached one
+     * for the same sql if possible; give it back with releaseStatement() instead of closing it
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        return prepareStatement(connection, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * Prepare a statement on a borrowed connection, reusing a cached one for the same sql and result
+     * set type if possible; connections not borrowed from this pool aren't cached
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        PooledConnection pooled = borrowed.get(connection);
+        if (pooled == null) return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        return pooled.statements.prepare(sql, resultSetType, resultSetConcurrency);
+    }
+
+    /**
+     * Give back a statement from prepareStatement() so it can be reused
+     */
+    public void releaseStatement(Connection connection, PreparedStatement statement) {
+        if (statement == null) return;
+        PooledConnection pooled = (connection == null) ? null : borrowed.get(connection);
+        if (pooled != null) {
+            pooled.statements.release(statement);
+            return;
+        }
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing statement: " + e);
         }
-        // Make sure the connection is still ok
-        if (!isValid(connection)) connection = connection();
-        return connection;
     }
 
-    private void ensureSshSession() {
-        if (sshSession != null && sshSession.isConnected()) return;
-        java.util.Properties config = new java.util.Properties();
-        config.put("StrictHostKeyChecking", "no");
-        JSch jsch = new JSch();
+    /**
+     * Open the pool again after close() so connections can be borrowed from it
+     */
+    public synchronized void open() {
+        closed = false;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Open connections in the background until there are at least the minimum number idle
+     */
+    public void warm() {
+        startHousekeeping();
+        ensureMinIdle();
+    }
+
+    /**
+     * Wait for a permit to borrow a connection
+     */
+    private void acquirePermit() {
+        long start = System.nanoTime();
         try {
-            if (connectionData.getSshKeyFile() != null) {
-                File keyFile = new File(connectionData.getSshKeyFile());
-                jsch.addIdentity(keyFile.getAbsolutePath(), connectionData.getSshPassphrase());
+            boolean acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+            metrics.getBorrowWait().recordSince(start);
+            if (!acquired) {
+                throw new IllegalStateException("Timed out after " + borrowTimeout + "ms waiting for a connection to " + getURL()
+                        + " (" + borrowed.size() + " of " + maxConnections + " in use)");
             }
-            sshSession = jsch.getSession(connectionData.getSshUser(), connectionData.getSshHost(), 22);
-            sshSession.setConfig(config);
-            sshSession.setPassword(connectionData.getPassword());
-            sshSession.connect();
-            sshSession.setPortForwardingL(connectionData.getSshLocalPort(), connectionData.getSshRemoteHost(), connectionData.getSshRemotePort());
-        } catch (JSchException e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a connection to " + getURL(), e);
+        }
+    }
+
+    /**
+     * Make sure this pool has a connected ssh tunnel; connecting is done outside the pool's lock so a
+     * slow bastion doesn't hold up close() or other borrowers.  Throws IllegalStateException with the
+     * ssh error if the tunnel can't be connected
+     */
+    private void ensureSshSession() {
+        SshTunnelManager.Tunnel current;
+        synchronized (this) {
+            if (tunnel == null) tunnel = SshTunnelManager.getInstance().open(connectionData);
+            current = tunnel;
+        }
+        current.ensureConnected();
+    }
+
+    /**
+     * Return the url to connect to, pointing it at the ssh tunnel if the port was assigned dynamically
+     */
+    private synchronized String getConnectUrl() {
+        String url = connectionData.getUrl();
+        if (tunnel != null && url.contains(SSH_LOCAL_PORT)) {
+            url = url.replace(SSH_LOCAL_PORT, String.valueOf(tunnel.getLocalPort()));
         }
+        return url;
     }
 
+    /**
+     * Give a borrowed connection back to the pool; connections not borrowed from this pool are ignored
+     */
     public void returnConnection(Connection connection) {
-        if (isValid(connection) && connections.size() < maxConnections) connections.push(connection);
+        if (connection == null) return;
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) return;
+        pooled.returned();
+        try {
+            if (closed || pooled.isExpired(System.currentTimeMillis()) || !reset(pooled)) closeConnection(connection);
+            else if (connections.size() + borrowed.size() < maxConnections) connections.offerFirst(pooled);
+            else closeConnection(connection);
+        } finally {
+            permits.release();
+            if (closed) releaseTunnel();
+        }
     }
 
+    /**
+     * Close a borrowed connection which can't be trusted any more, such as one stuck in a statement
+     * which wouldn't cancel, and free its place in the pool; returning it afterwards does nothing
+     */
+    public void evictConnection(Connection connection) {
+        if (connection == null) return;
+        PooledConnection pooled = borrowed.remove(connection);
+        if (pooled == null) return;
+        pooled.returned();
+        metrics.connectionEvicted();
+        try {
+            closeConnection(connection);
+        } finally {
+            permits.release();
+            if (closed) releaseTunnel();
+        }
+    }
+
+    /**
+     * Return the number of idle connections
+     */
     public int openConnections() {
         return connections.size();
     }
 
-    public void setMaxConnections(int connections) {
-        this.maxConnections = connections;
+    /**
+     * Return the number of connections currently borrowed
+     */
+    public int activeConnections() {
+        return borrowed.size();
+    }
+
+    /**
+     * Return the number of callers waiting for a connection
+     */
+    public int waitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Change the maximum number of connections; if lowered, connections in use are closed as they
+     * are returned until the pool is back under the limit
+     */
+    public synchronized void setMaxConnections(int connections) {
+        if (connections < 1) throw new IllegalArgumentException("Maximum connections must be at least 1");
+        int delta = connections - maxConnections;
+        maxConnections = connections;
+        if (delta > 0) permits.release(delta);
+        else if (delta < 0) permits.reducePermits(-delta);
+    }
+
+    /**
+     * Set how long to wait for a connection before giving up
+     */
+    public void setBorrowTimeout(long timeout, TimeUnit unit) {
+        this.borrowTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Return the timings collected for this pool
+     */
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    public String getName() {
+        return connectionData.getName();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
     }
 
     public String getURL() {
@@ -99,71 +383,571 @@ public class ConnectionPool {
         return connectionData.getFetchLimit();
     }
 
+    public int getMaxRowsHeld() {
+        return connectionData.getMaxRowsHeld() == null ? 0 : connectionData.getMaxRowsHeld();
+    }
+
+    public int getSpillRows() {
+        return connectionData.getSpillRows() == null ? 0 : connectionData.getSpillRows();
+    }
+
+    public long getSpillBytes() {
+        return connectionData.getSpillMegabytes() == null ? 0 : connectionData.getSpillMegabytes() * 1024L * 1024L;
+    }
+
+    /**
+     * Seconds a statement may run before it is cancelled, zero for no timeout
+     */
+    public int getQueryTimeout() {
+        return connectionData.getQueryTimeout() == null ? 0 : connectionData.getQueryTimeout();
+    }
+
+    public long getResultCacheMillis() {
+        return connectionData.getResultCacheSeconds() == null ? 0 : TimeUnit.SECONDS.toMillis(connectionData.getResultCacheSeconds());
+    }
+
+    public long getResultCacheBytes() {
+        return connectionData.getResultCacheMegabytes() == null ? 0 : connectionData.getResultCacheMegabytes() * 1024L * 1024L;
+    }
+
+    /**
+     * Note that a statement which may have changed data, or a commit or rollback, was run on one of
+     * this pool's connections; anything cached from earlier reads is stale
+     */
+    public void dataChanged() {
+        dataVersion.incrementAndGet();
+    }
+
+    /**
+     * Return a number which changes whenever data may have changed
+     */
+    public long getDataVersion() {
+        return dataVersion.get();
+    }
+
+    /**
+     * Close the idle connections and stop background work; connections still borrowed are closed as
+     * they are returned, and nothing more can be borrowed until the pool is opened again
+     */
     public void close() {
-        // Close all connections in the pool
-        while (!connections.empty()) {
-            Connection c = connections.pop();
-            closeConnection(c);
+        synchronized (this) {
+            closed = true;
+            generation++;
+        }
+        // Close all idle connections in the pool
+        PooledConnection pooled;
+        while ((pooled = connections.pollFirst()) != null) {
+            closeConnection(pooled.connection);
+        }
+        synchronized (this) {
+            if (housekeeping != null) {
+                housekeeping.cancel(false);
+                housekeeping = null;
+            }
         }
-        if (sshSession != null && sshSession.isConnected()) {
-            sshSession.disconnect();
-            sshSession = null;
+        releaseTunnel();
+    }
+
+    /**
+     * Give up the ssh tunnel once the pool is closed and the last borrowed connection is back, so the
+     * shared session isn't disconnected under connections still rolling back or closing
+     */
+    private void releaseTunnel() {
+        SshTunnelManager.Tunnel released;
+        synchronized (this) {
+            if (!closed || tunnel == null || !borrowed.isEmpty()) return;
+            released = tunnel;
+            tunnel = null;
         }
+        SshTunnelManager.getInstance().release(released);
     }
 
     /**
-     * Check if the connection is valid by attempting a rollback; if not valid,
-     * try to close it
+     * Check if an idle connection is still usable; connections used or checked within the validation
+     * interval are trusted without a round trip to the database
      */
-    private boolean isValid(Connection c) {
-        boolean valid = true;
-        // If null or closed, return immediately
-        if (c == null) return false;
+    private boolean isValid(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastChecked() < validationInterval) return true;
+        if (!validate(pooled.connection)) return false;
+        pooled.validated();
+        return true;
+    }
+
+    /**
+     * Validate a connection with the driver's test query if it has one, otherwise with
+     * Connection.isValid(); drivers which predate isValid() fall back to a rollback
+     */
+    private boolean validate(Connection c) {
         try {
             if (c.isClosed()) return false;
+            if (driverData.getTestQuery() != null) return testQuery(c);
+            return c.isValid(validationTimeout);
+        } catch (AbstractMethodError e) {
+            return rollback(c);
+        } catch (SQLFeatureNotSupportedException e) {
+            return rollback(c);
         } catch (Exception e) {
             return false;
         }
-        // Try rollback and close if there are errors
+    }
+
+    /**
+     * Run the driver's test query
+     */
+    private boolean testQuery(Connection c) {
+        Statement statement = null;
+        try {
+            statement = c.createStatement();
+            statement.setQueryTimeout(validationTimeout);
+            statement.execute(driverData.getTestQuery());
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            try {
+                if (statement != null) statement.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private boolean rollback(Connection c) {
         try {
             c.rollback();
+            return true;
         } catch (Exception e) {
-            valid = false;
+            return false;
         }
-        if (!valid) {
-            closeConnection(c);
+    }
+
+    /**
+     * Prepare a returned connection for the next borrower; an open transaction is rolled back
+     * unless the connection is in autocommit mode
+     */
+    private boolean reset(PooledConnection pooled) {
+        try {
+            if (pooled.connection.isClosed()) return false;
+        } catch (Exception e) {
+            return false;
         }
-        return valid;
+        if (!connectionData.isAutocommit() && !rollback(pooled.connection)) return false;
+        pooled.touch();
+        return true;
     }
 
     /**
      * Create a new connection
      */
-    private Connection connection() {
+    private PooledConnection connection() {
         Connection c = null;
+        String url = getConnectUrl();
+        long start = System.nanoTime();
         try {
-            Class.forName(driverData.getClassName());
-            c = DriverManager.getConnection(connectionData.getUrl(), connectionData.getUser(), connectionData.getPassword());
+            c = DriverRegistry.getInstance().connect(driverData, url, connectionData.getUser(), connectionData.getPassword());
             c.setAutoCommit(connectionData.isAutocommit());
+            metrics.getCreate().recordSince(start);
         } catch (Exception e) {
             c = null;
         }
-        return c;
+        return (c == null) ? null : new PooledConnection(c, lifetime(), new StatementCache(c, statementCacheSize, metrics));
+    }
+
+    /**
+     * Return a lifetime for a new connection, randomly shortened so connections created together
+     * are retired at different times; zero means connections live forever
+     */
+    private long lifetime() {
+        if (maxLifetime <= 0) return 0;
+        return maxLifetime - (long) (ThreadLocalRandom.current().nextDouble() * LIFETIME_JITTER * maxLifetime);
+    }
+
+    /**
+     * Request enough background connections to bring the idle count up to the minimum without
+     * going over the maximum number of connections
+     */
+    private void ensureMinIdle() {
+        while (!closed) {
+            int requested = pending.get();
+            int idle = connections.size() + requested;
+            int total = idle + borrowed.size() + opening.get();
+            if (idle >= minIdle || total >= maxConnections) return;
+            if (pending.compareAndSet(requested, requested + 1) && !addConnection(generation)) return;
+        }
+    }
+
+    /**
+     * Open a new idle connection on the connector threads; returns false if it couldn't be queued
+     */
+    private boolean addConnection(final int requestedGeneration) {
+        try {
+            getConnector().execute(new Runnable() {
+                @Override
+                public void run() {
+                    PooledConnection pooled = null;
+                    try {
+                        if (connectionData.isSsh()) ensureSshSession();
+                        pooled = connection();
+                    } catch (IllegalStateException e) {
+                        System.err.println("Error opening a connection to " + getName() + " in the background: " + e.getMessage());
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                    if (pooled == null) return;
+                    if (requestedGeneration == generation && !closed && connections.size() + borrowed.size() + opening.get() < maxConnections) {
+                        connections.offerLast(pooled);
+                    } else {
+                        closeConnection(pooled.connection);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The connector threads have been shut down
+            pending.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Schedule background work on idle connections for this pool if it isn't already running
+     */
+    private synchronized void startHousekeeping() {
+        if (housekeeping != null || closed) return;
+        long interval = (validationInterval > 0) ? Math.min(validationInterval, HOUSEKEEPING_INTERVAL) : HOUSEKEEPING_INTERVAL;
+        housekeeping = getHousekeeper().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                housekeep();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retire idle connections which have outlived the maximum lifetime or sat unused longer than
+     * the idle timeout, validate the rest if they haven't been used within the validation interval
+     * and then top the pool back up to the minimum idle size
+     */
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        int idle = connections.size();
+        // Least recently used connections are at the end of the queue
+        Iterator<PooledConnection> i = connections.descendingIterator();
+        while (i.hasNext()) {
+            PooledConnection pooled = i.next();
+            boolean expired = pooled.isExpired(now);
+            boolean unused = idleTimeout > 0 && idle > minIdle && now - pooled.lastUsed >= idleTimeout;
+            boolean unchecked = validationInterval > 0 && now - pooled.lastChecked() >= validationInterval;
+            if (!expired && !unused && !unchecked) continue;
+            // Take it out of the pool first so no one borrows it
+            if (!connections.remove(pooled)) continue;
+            if (!expired && !unused && validate(pooled.connection)) {
+                pooled.validated();
+                connections.offerLast(pooled);
+            } else {
+                idle--;
+                closeConnection(pooled.connection);
+            }
+        }
+        reclaimAbandoned();
+        reportLeaks(now);
+        ensureMinIdle();
+    }
+
+    /**
+     * Close connections whose owners were garbage collected without returning them
+     */
+    private void reclaimAbandoned() {
+        Reference<?> reference;
+        while ((reference = abandonedOwners.poll()) != null) {
+            PooledConnection pooled = ((OwnerReference) reference).pooled;
+            // Only if it wasn't returned, and perhaps borrowed again, in the meantime
+            if (pooled.owner != reference || !borrowed.remove(pooled.connection, pooled)) continue;
+            pooled.returned();
+            metrics.connectionReclaimed();
+            System.err.println("Reclaiming connection to " + getName() + " from an owner which was garbage collected"
+                    + ((pooled.borrowSite == null) ? "" : ":"));
+            if (pooled.borrowSite != null) pooled.borrowSite.printStackTrace();
+            closeConnection(pooled.connection);
+            permits.release();
+        }
+    }
+
+    /**
+     * Report, once, each connection which has been borrowed for longer than the leak detection
+     * threshold along with where it was borrowed
+     */
+    private void reportLeaks(long now) {
+        if (leakDetectionThreshold <= 0) return;
+        for (PooledConnection pooled : borrowed.values()) {
+            if (pooled.leakReported || now - pooled.borrowedAt < leakDetectionThreshold) continue;
+            pooled.leakReported = true;
+            metrics.leakDetected();
+            System.err.println("Possible connection leak: connection to " + getName() + " held for "
+                    + (now - pooled.borrowedAt) / 1000 + "s");
+            if (pooled.borrowSite != null) pooled.borrowSite.printStackTrace();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getHousekeeper() {
+        if (housekeeper == null) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("ConnectionPool.housekeeper"));
+        }
+        return housekeeper;
+    }
+
+    private static synchronized ExecutorService getConnector() {
+        if (connector == null) {
+            connector = Executors.newFixedThreadPool(CONNECTOR_THREADS, daemonThreads("ConnectionPool.connector"));
+        }
+        return connector;
+    }
+
+    private static synchronized ThreadPoolExecutor getCloser() {
+        if (closer == null) {
+            closer = new ThreadPoolExecutor(CLOSER_THREADS, CLOSER_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(CLOSER_QUEUE), daemonThreads("ConnectionPool.closer"));
+            closer.allowCoreThreadTimeOut(true);
+        }
+        return closer;
+    }
+
+    /**
+     * Create daemon threads so background pool work never keeps the jvm alive
+     */
+    static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     /**
-     * Try and close a connection; do it in a new thread to avoid hanging on
-     * invalid or f@#$(*&ed connections
+     * Try and close a connection; do it on the closer threads to avoid hanging on
+     * invalid or f@#$(*&ed connections.  A close which doesn't finish within the close timeout
+     * is aborted and counted as abandoned, as is one which can't be queued at all
      */
     private void closeConnection(final Connection c) {
-        new Thread("closeConnection:" + c) {
+        final CloseTask task = new CloseTask(c);
+        try {
+            task.executor = getCloser();
+            closing.add(task);
+            task.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.abandon("too many connections closing");
+            return;
+        }
+        getHousekeeper().schedule(new Runnable() {
+            @Override
             public void run() {
-                try {
-                    c.close();
-                } catch (Exception e) {
-                    System.err.println("Trying to close connection: " + e);
-                }
+                task.abandon("timed out after " + CLOSE_TIMEOUT + "ms");
+            }
+        }, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a closer thread in place of one stuck in a close, or drop it again once the close
+     * returns; an executor which has since been shut down is left alone
+     */
+    private static synchronized void resizeCloser(ThreadPoolExecutor executor, int delta) {
+        if (executor != closer) return;
+        int size = executor.getMaximumPoolSize() + delta;
+        if (size < CLOSER_THREADS || size > MAX_CLOSER_THREADS) return;
+        if (delta > 0) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Stop the background threads shared by all pools, waiting until the deadline for queued
+     * connection closes to finish; anything still closing after that is abandoned.  The threads are
+     * recreated if a pool is used again
+     */
+    public static void shutdownExecutors(long timeout, TimeUnit unit) {
+        ScheduledExecutorService oldHousekeeper;
+        ExecutorService oldConnector;
+        ThreadPoolExecutor oldCloser;
+        synchronized (ConnectionPool.class) {
+            oldHousekeeper = housekeeper;
+            oldConnector = connector;
+            oldCloser = closer;
+            housekeeper = null;
+            connector = null;
+            closer = null;
+        }
+        if (oldHousekeeper != null) oldHousekeeper.shutdownNow();
+        if (oldConnector != null) oldConnector.shutdownNow();
+        if (oldCloser == null) return;
+        oldCloser.shutdown();
+        try {
+            if (!oldCloser.awaitTermination(timeout, unit)) oldCloser.shutdownNow();
+        } catch (InterruptedException e) {
+            oldCloser.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (CloseTask task : closing) {
+            task.abandon("at shutdown");
+        }
+    }
+
+    /**
+     * Set a network timeout on a connection about to be closed so a dead server can't block the
+     * close forever; not every driver supports it
+     */
+    private static void limitClose(Connection c) {
+        try {
+            c.setNetworkTimeout(ABORTER, (int) CLOSE_TIMEOUT);
+        } catch (SQLException e) {
+            // Not supported; the close is aborted if it hangs
+        } catch (AbstractMethodError e) {
+            // Driver older than jdbc 4.1
+        }
+    }
+
+    /**
+     * Abort a connection whose close has hung, which drivers must do without waiting on the network
+     */
+    private static void abort(Connection c) {
+        try {
+            c.abort(ABORTER);
+        } catch (SQLException e) {
+            System.err.println("Trying to abort connection: " + e);
+        } catch (AbstractMethodError e) {
+            System.err.println("Trying to abort connection: driver older than jdbc 4.1");
+        }
+    }
+
+    /**
+     * Closes one connection on a closer thread.  If the close is abandoned while queued it is
+     * aborted instead; if abandoned while running, the connection is aborted and another closer
+     * thread stands in for the stuck one until the close returns
+     */
+    private class CloseTask implements Runnable {
+
+        final Connection connection;
+        final AtomicInteger state = new AtomicInteger(CLOSE_QUEUED);
+        ThreadPoolExecutor executor;
+
+        CloseTask(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(CLOSE_QUEUED, CLOSE_RUNNING)) return;
+            try {
+                limitClose(connection);
+                connection.close();
+            } catch (Exception e) {
+                System.err.println("Trying to close connection: " + e);
+            } finally {
+                closing.remove(this);
+                if (!state.compareAndSet(CLOSE_RUNNING, CLOSE_DONE)) resizeCloser(executor, -1);
             }
-        }.start();
+        }
+
+        /**
+         * Give up waiting for the close, unless it has already finished
+         */
+        void abandon(String reason) {
+            int previous = state.get();
+            if (previous == CLOSE_DONE || previous == CLOSE_ABANDONED || !state.compareAndSet(previous, CLOSE_ABANDONED)) return;
+            closing.remove(this);
+            metrics.closeAbandoned();
+            System.err.println("Abandoning close of " + connection + ": " + reason);
+            if (previous == CLOSE_RUNNING && executor != null) resizeCloser(executor, 1);
+            abort(connection);
+        }
+    }
+
+    /**
+     * A pooled connection and the bookkeeping needed to decide when to check it
+     */
+    private static class PooledConnection {
+
+        final Connection connection;
+        final StatementCache statements;
+        final long created;
+        final long expires;
+        volatile long lastUsed;
+        volatile long lastValidated;
+        volatile long borrowedAt;
+        volatile Throwable borrowSite;
+        volatile OwnerReference owner;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection connection, long lifetime, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+            this.created = System.currentTimeMillis();
+            this.expires = (lifetime > 0) ? created + lifetime : Long.MAX_VALUE;
+            this.lastUsed = created;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void borrowed(Throwable borrowSite, OwnerReference owner) {
+            this.borrowedAt = System.currentTimeMillis();
+            this.borrowSite = borrowSite;
+            this.owner = owner;
+            this.leakReported = false;
+        }
+
+        void returned() {
+            if (owner != null) owner.clear();
+            owner = null;
+            borrowSite = null;
+        }
+
+        void validated() {
+            lastValidated = System.currentTimeMillis();
+        }
+
+        long lastChecked() {
+            return Math.max(lastUsed, lastValidated);
+        }
+
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+    /**
+     * Weakly references the owner of a borrowed connection
+     */
+    private static class OwnerReference extends WeakReference<Object> {
+
+        final PooledConnection pooled;
+
+        OwnerReference(Object owner, PooledConnection pooled, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * Exposes permit reduction so the pool size can be lowered while connections are in use
+     */
+    private static class PoolSemaphore extends Semaphore {
+
+        PoolSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
     }
 }
@@ -0,0 +1,509 @@
+package net.contrapt.dhlp.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads a csv (rfc 4180) or tab separated file into a table.  The first line names the columns.  One
+ * thread parses the file into batches of rows while one or more loaders, each with its own pooled
+ * connection, insert the batches through a prepared statement and commit every so many batches.  With
+ * more than one loader the rows are not inserted in file order
+ */
+public class CsvImporter {
+
+   //
+   // PROPERTIES
+   //
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   // Batches parsed ahead of the loaders, for each loader
+   private static final int QUEUE_BATCHES = 4;
+   // How long the parser and loaders wait on the queue before checking whether to stop (ms)
+   private static final long QUEUE_WAIT = 100;
+
+   private ConnectionPool pool;
+   private JDBCView table;
+   private File file;
+   private int batchSize = 1000;
+   private int commitBatches = 10;
+   private int loaders = 1;
+   // The table column for each field of a row
+   private List<JDBCView.Column> targets = new ArrayList<JDBCView.Column>();
+   private AtomicLong parsed = new AtomicLong();
+   private AtomicLong inserted = new AtomicLong();
+   private AtomicLong committed = new AtomicLong();
+   private volatile boolean cancelled;
+   private volatile boolean parsing;
+   private volatile Exception error;
+   private volatile long startTime;
+   private volatile long endTime;
+
+   //
+   // CONSTRUCTORS
+   //
+   public CsvImporter(ConnectionPool pool, JDBCView table, File file) {
+      this.pool = pool;
+      this.table = table;
+      this.file = file;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Rows inserted in each executeBatch
+    */
+   public void setBatchSize(int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+   }
+
+   /**
+    * Commit after this many batches
+    */
+   public void setCommitBatches(int commitBatches) {
+      this.commitBatches = Math.max(1, commitBatches);
+   }
+
+   /**
+    * Number of connections inserting at once
+    */
+   public void setLoaders(int loaders) {
+      this.loaders = Math.max(1, loaders);
+   }
+
+   public JDBCView getTable() {
+      return table;
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Load the file, returning when it is all committed or the import fails; work not committed by a
+    * loader is rolled back if it fails
+    */
+   public void run() {
+      parsed.set(0);
+      inserted.set(0);
+      committed.set(0);
+      cancelled = false;
+      parsing = true;
+      error = null;
+      targets.clear();
+      startTime = System.currentTimeMillis();
+      endTime = 0;
+      final BlockingQueue<List<String[]>> queue = new ArrayBlockingQueue<List<String[]>>(QUEUE_BATCHES * loaders);
+      ExecutorService threads = Executors.newFixedThreadPool(loaders + 1, ConnectionPool.daemonThreads("dhlp-import"));
+      try {
+         final Reader reader = open(file);
+         final CsvReader csv = new CsvReader(reader, isTabSeparated(file));
+         final String insert;
+         try {
+            insert = insertStatement(csv.read());
+         } catch (Exception e) {
+            // The parser closes the file once it starts
+            close(reader);
+            throw e;
+         }
+         List<Future<?>> tasks = new ArrayList<Future<?>>();
+         tasks.add(threads.submit(new Runnable() {
+            public void run() {
+               parse(csv, reader, queue);
+            }
+         }));
+         for (int i = 0; i < loaders; i++) {
+            tasks.add(threads.submit(new Runnable() {
+               public void run() {
+                  load(insert, queue);
+               }
+            }));
+         }
+         for (Future<?> task : tasks) {
+            task.get();
+         }
+      } catch (Exception e) {
+         fail(e);
+      } finally {
+         threads.shutdownNow();
+         endTime = System.currentTimeMillis();
+         pool.dataChanged();
+      }
+      if (error != null) throw new IllegalStateException("Error importing " + file + " into " + table.getName(), error);
+   }
+
+   /**
+    * Stop the import; batches not yet committed are rolled back
+    */
+   public void cancel() {
+      cancelled = true;
+   }
+
+   public long getParsed() {
+      return parsed.get();
+   }
+
+   public long getInserted() {
+      return inserted.get();
+   }
+
+   public long getCommitted() {
+      return committed.get();
+   }
+
+   public boolean isRunning() {
+      return startTime > 0 && endTime == 0;
+   }
+
+   /**
+    * Describe how far the import has got
+    */
+   public String getProgress() {
+      long elapsed = ((endTime > 0) ? endTime : System.currentTimeMillis()) - startTime;
+      long rate = (elapsed > 0) ? committed.get() * 1000 / elapsed : 0;
+      String state = (error != null) ? "failed" : cancelled ? "cancelled" : (endTime > 0) ? "done" : "loading";
+      return String.format("%s: %,d rows read, %,d inserted, %,d committed in %.1fs (%,d rows/s)",
+            state, parsed.get(), inserted.get(), committed.get(), elapsed / 1000.0, rate);
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private static Reader open(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      if (file.getName().toLowerCase().endsWith(".gz")) in = new GZIPInputStream(in, 64 * 1024);
+      return new BufferedReader(new InputStreamReader(in, UTF8), 64 * 1024);
+   }
+
+   private static boolean isTabSeparated(File file) {
+      String name = file.getName().toLowerCase();
+      if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+      return name.endsWith(".tsv") || name.endsWith(".tab") || name.endsWith(".txt");
+   }
+
+   /**
+    * Build the insert statement from the header line, checking each name is a column of the table
+    */
+   private String insertStatement(String[] header) throws SQLException {
+      if (header == null) throw new IllegalStateException("No header line naming the columns in " + file);
+      Map<String, JDBCView.Column> columns = new HashMap<String, JDBCView.Column>();
+      for (JDBCView.Column column : table.getColumns()) {
+         columns.put(column.getName().toUpperCase(), column);
+      }
+      String quote = identifierQuote();
+      StringBuilder names = new StringBuilder();
+      StringBuilder values = new StringBuilder();
+      for (String name : header) {
+         JDBCView.Column column = (name == null) ? null : columns.get(name.trim().toUpperCase());
+         if (column == null) throw new IllegalStateException("No column " + name + " in " + table.getName());
+         if (names.length() > 0) {
+            names.append(", ");
+            values.append(", ");
+         }
+         names.append(quote).append(column.getName()).append(quote);
+         values.append('?');
+         targets.add(column);
+      }
+      String name = quote + table.getName() + quote;
+      if (table.getSchema() != null) name = quote + table.getSchema() + quote + "." + name;
+      return "insert into " + name + " (" + names + ") values (" + values + ")";
+   }
+
+   private String identifierQuote() throws SQLException {
+      Connection db = pool.takeConnection();
+      if (db == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      try {
+         String quote = db.getMetaData().getIdentifierQuoteString();
+         return (quote == null || quote.trim().length() == 0) ? "" : quote.trim();
+      } finally {
+         pool.returnConnection(db);
+      }
+   }
+
+   /**
+    * Read the file into batches for the loaders, then tell each loader it's done
+    */
+   private void parse(CsvReader csv, Reader reader, BlockingQueue<List<String[]>> queue) {
+      try {
+         List<String[]> batch = new ArrayList<String[]>(batchSize);
+         String[] row;
+         while (!isStopped() && (row = csv.read()) != null) {
+            if (row.length == 1 && row[0] == null) continue;
+            if (row.length != targets.size())
+               throw new IllegalStateException("Line " + csv.getLine() + " has " + row.length + " fields, expected " + targets.size());
+            batch.add(row);
+            parsed.incrementAndGet();
+            if (batch.size() == batchSize) {
+               put(queue, batch);
+               batch = new ArrayList<String[]>(batchSize);
+            }
+         }
+         if (!batch.isEmpty()) put(queue, batch);
+      } catch (Exception e) {
+         fail(e);
+      } finally {
+         parsing = false;
+         close(reader);
+      }
+   }
+
+   private void close(Reader reader) {
+      try {
+         reader.close();
+      } catch (IOException e) {
+         System.err.println(getClass() + ".close(): " + e);
+      }
+   }
+
+   /**
+    * Queue a batch, giving up if the import stops while waiting for the loaders
+    */
+   private void put(BlockingQueue<List<String[]>> queue, List<String[]> batch) throws InterruptedException {
+      while (!isStopped()) {
+         if (queue.offer(batch, QUEUE_WAIT, TimeUnit.MILLISECONDS)) return;
+      }
+   }
+
+   /**
+    * Insert batches from the queue on one connection until the parser is done
+    */
+   private void load(String insert, BlockingQueue<List<String[]>> queue) {
+      Connection db = pool.takeConnection(this);
+      if (db == null) {
+         fail(new IllegalStateException("Error connecting to " + pool.getURL()));
+         return;
+      }
+      PreparedStatement statement = null;
+      boolean autocommit = true;
+      long uncommitted = 0;
+      int batches = 0;
+      try {
+         autocommit = db.getAutoCommit();
+         db.setAutoCommit(false);
+         statement = pool.prepareStatement(db, insert);
+         while (!isStopped()) {
+            // The parser stops parsing after queueing its last batch
+            boolean more = parsing;
+            List<String[]> batch = queue.poll(QUEUE_WAIT, TimeUnit.MILLISECONDS);
+            if (batch == null) {
+               if (!more) break;
+               continue;
+            }
+            for (String[] row : batch) {
+               for (int i = 0; i < row.length; i++) {
+                  bind(statement, i + 1, targets.get(i).getDataType(), row[i]);
+               }
+               statement.addBatch();
+            }
+            long start = System.nanoTime();
+            statement.executeBatch();
+            pool.getMetrics().getExecute().recordSince(start);
+            inserted.addAndGet(batch.size());
+            uncommitted += batch.size();
+            if (++batches % commitBatches == 0) {
+               db.commit();
+               committed.addAndGet(uncommitted);
+               uncommitted = 0;
+            }
+         }
+         if (isStopped()) {
+            db.rollback();
+         } else {
+            db.commit();
+            committed.addAndGet(uncommitted);
+         }
+      } catch (Exception e) {
+         fail(e);
+         try {
+            db.rollback();
+         } catch (SQLException r) {
+            System.err.println(getClass() + ".load(): " + r);
+         }
+      } finally {
+         try {
+            db.setAutoCommit(autocommit);
+         } catch (SQLException e) {
+            System.err.println(getClass() + ".load(): " + e);
+         }
+         pool.releaseStatement(db, statement);
+         pool.returnConnection(db);
+      }
+   }
+
+   /**
+    * Bind a field using the setter for the column type; empty fields are null, quoted empty ones are
+    * empty strings, and values which can't be converted are left to the database
+    */
+   private static void bind(PreparedStatement statement, int index, int type, String value) throws SQLException {
+      if (value == null) {
+         statement.setNull(index, type);
+         return;
+      }
+      if (value.length() == 0) {
+         statement.setString(index, value);
+         return;
+      }
+      try {
+         switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+               statement.setInt(index, Integer.parseInt(value.trim()));
+               return;
+            case Types.BIGINT:
+               statement.setLong(index, Long.parseLong(value.trim()));
+               return;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+               statement.setBigDecimal(index, new BigDecimal(value.trim()));
+               return;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+               statement.setDouble(index, Double.parseDouble(value.trim()));
+               return;
+            case Types.BIT:
+            case Types.BOOLEAN:
+               String flag = value.trim();
+               statement.setBoolean(index, flag.equalsIgnoreCase("true") || flag.equals("1") || flag.equalsIgnoreCase("y"));
+               return;
+            case Types.DATE:
+               statement.setDate(index, java.sql.Date.valueOf(value.trim()));
+               return;
+            case Types.TIMESTAMP:
+               statement.setTimestamp(index, java.sql.Timestamp.valueOf(value.trim()));
+               return;
+         }
+      } catch (IllegalArgumentException e) {
+         // Includes NumberFormatException; let the database try
+      }
+      statement.setString(index, value);
+   }
+
+   private boolean isStopped() {
+      return cancelled || error != null;
+   }
+
+   private synchronized void fail(Exception e) {
+      if (error == null) error = e;
+   }
+
+   /**
+    * Reads records from csv, where fields may be quoted and quoted fields may hold separators, line
+    * breaks and doubled quotes, or from tab separated values with backslash escapes.  Empty fields are
+    * read as null, but a quoted empty field ("") is an empty string
+    */
+   static class CsvReader {
+
+      private Reader in;
+      private boolean tabs;
+      private int line;
+      private int peeked = -2;
+      private StringBuilder field = new StringBuilder();
+      // Whether the field being read was quoted, so an empty one is an empty string rather than null
+      private boolean wasQuoted;
+
+      CsvReader(Reader in, boolean tabs) {
+         this.in = in;
+         this.tabs = tabs;
+      }
+
+      int getLine() {
+         return line;
+      }
+
+      /**
+       * Return the fields of the next record, or null at the end of the file
+       */
+      String[] read() throws IOException {
+         int c = next();
+         if (c < 0) return null;
+         line++;
+         List<String> fields = new ArrayList<String>();
+         field.setLength(0);
+         wasQuoted = false;
+         boolean quoted = false;
+         while (true) {
+            if (c < 0 || (!quoted && (c == '\n' || c == '\r'))) {
+               if (c == '\r' && peek() == '\n') next();
+               fields.add(endField());
+               return fields.toArray(new String[fields.size()]);
+            }
+            if (tabs) {
+               if (c == '\t') {
+                  fields.add(endField());
+               } else if (c == '\\') {
+                  int e = next();
+                  if (e >= 0) field.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : (char) e);
+               } else {
+                  field.append((char) c);
+               }
+            } else if (quoted) {
+               if (c == '"') {
+                  if (peek() == '"') field.append((char) next());
+                  else quoted = false;
+               } else {
+                  if (c == '\n') line++;
+                  field.append((char) c);
+               }
+            } else if (c == '"' && field.length() == 0) {
+               quoted = true;
+               wasQuoted = true;
+            } else if (c == ',') {
+               fields.add(endField());
+            } else {
+               field.append((char) c);
+            }
+            c = next();
+         }
+      }
+
+      /**
+       * Return the field just read and start the next one
+       */
+      private String endField() {
+         String value = (field.length() == 0 && !wasQuoted) ? null : field.toString();
+         field.setLength(0);
+         wasQuoted = false;
+         return value;
+      }
+
+      private int next() throws IOException {
+         if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+         }
+         return in.read();
+      }
+
+      private int peek() throws IOException {
+         if (peeked == -2) peeked = in.read();
+         return peeked;
+      }
+   }
+}
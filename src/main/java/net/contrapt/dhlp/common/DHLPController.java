@@ -2,7 +2,11 @@ package net.contrapt.dhlp.common;
 
 import java.util.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.contrapt.dhlp.model.ConfigurationData;
 import net.contrapt.dhlp.model.ConnectionData;
@@ -18,6 +22,11 @@ public class DHLPController {
    // PROPERTIES
    //
    private static DHLPController INSTANCE;
+   private static final String TASK_METRICS_NAME = "net.contrapt.dhlp:type=TaskExecutor";
+   // Kept beside the configuration file
+   private static final String HISTORY_FILE = "dhlp-history.tsv";
+   // How long shutdown waits for connections to close
+   private static final long SHUTDOWN_TIMEOUT = 5000;
    private String dhlpFile;
    private ConfigurationData dhlpData;
    private Map<String, ConnectionData> connections;
@@ -48,6 +57,7 @@ public class DHLPController {
     */
    public static void create(String dhlpFile) {
       if (INSTANCE != null) return;
+      TaskExecutor.start();
       INSTANCE = new DHLPController(dhlpFile);
    }
 
@@ -74,6 +84,8 @@ public class DHLPController {
       }
       if (dhlpData == null) dhlpData = new ConfigurationData();
       mapConnections();
+      registerTaskMetrics();
+      QueryHistory.getInstance().open(new File(new File(dhlpFile).getAbsoluteFile().getParentFile(), HISTORY_FILE));
    }
 
    /**
@@ -94,8 +106,16 @@ public class DHLPController {
     */
    public void shutdown() {
       for (ConnectionPool pool : pools.values()) {
+         unregisterMetrics(pool);
          pool.close();
       }
+      unregisterTaskMetrics();
+      TaskExecutor.shutdown();
+      StatementWatchdog.shutdown();
+      QueryHistory.shutdown();
+      ConnectionPool.shutdownExecutors(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+      SshTunnelManager.getInstance().shutdown();
+      DriverRegistry.getInstance().shutdown();
       pools.clear();
       connections.clear();
       objectsByConnection.clear();
@@ -111,6 +131,22 @@ public class DHLPController {
       if (object.getClass().equals(JDBCProcedure.class)) describeObject(pool, (JDBCProcedure) object);
    }
 
+   /**
+    * Set up an import of the file into the table using the configured batch size, commit interval and
+    * number of loaders
+    */
+   public CsvImporter createImporter(String connection, JDBCObject object, File file) {
+      if (!(object instanceof JDBCView)) throw new IllegalStateException("Can only import into a table: " + object.getDisplayName());
+      describeObject(connection, object);
+      CsvImporter importer = new CsvImporter(getPool(connection), (JDBCView) object, file);
+      if (dhlpData != null) {
+         importer.setBatchSize(dhlpData.getImportBatchSize());
+         importer.setCommitBatches(dhlpData.getImportCommitBatches());
+         importer.setLoaders(dhlpData.getImportLoaders());
+      }
+      return importer;
+   }
+
    /**
     * Look for an object with the given name; if not found return null
     */
@@ -194,18 +230,6 @@ public class DHLPController {
       return null;
    }
 
-   /**
-    * Return a collection of driver jar files
-    */
-   public Collection getDriverJars() {
-      List jars = new ArrayList();
-      if (dhlpData == null) return jars;
-      for (DriverData data : dhlpData.getDrivers()) {
-         jars.add(data.getJarFile());
-      }
-      return jars;
-   }
-
    /**
     * Return list of drivers
     */
@@ -238,7 +262,7 @@ public class DHLPController {
    /**
     * Get a connection pool for the given connection name
     */
-   public ConnectionPool getPool(String name) {
+   public synchronized ConnectionPool getPool(String name) {
       ConnectionData connectionData = getConnection(name);
       if (connectionData == null) throw new IllegalStateException("No connection named '" + name + "' found");
       DriverData driverData = getDriver(connectionData.getDriver());
@@ -247,12 +271,49 @@ public class DHLPController {
       ConnectionPool pool = pools.get(name);
       if (pool == null) {
          if (!connectionData.isAutocommit()) connectionData.setAutocommit(dhlpData.isAutocommit());
+         if (connectionData.getMinIdle() == null) connectionData.setMinIdle(dhlpData.getMinIdle());
+         if (connectionData.getSpillRows() == null) connectionData.setSpillRows(dhlpData.getSpillRows());
+         if (connectionData.getSpillMegabytes() == null) connectionData.setSpillMegabytes(dhlpData.getSpillMegabytes());
+         if (connectionData.getMaxRowsHeld() == null) connectionData.setMaxRowsHeld(dhlpData.getMaxRowsHeld());
+         if (connectionData.getQueryTimeout() == null) connectionData.setQueryTimeout(dhlpData.getQueryTimeout());
+         if (connectionData.getResultCacheSeconds() == null) connectionData.setResultCacheSeconds(dhlpData.getResultCacheSeconds());
+         if (connectionData.getResultCacheMegabytes() == null) connectionData.setResultCacheMegabytes(dhlpData.getResultCacheMegabytes());
          pool = new ConnectionPool(driverData, connectionData);
          pools.put(name, pool);
+         registerMetrics(pool);
+         pool.warm();
+      } else if (pool.isClosed()) {
+         // Closed along with its panel; open it again for the new user
+         pool.open();
+         pool.warm();
       }
       return pool;
    }
 
+   /**
+    * Return the connection pool for the given connection name if one has been created
+    */
+   public synchronized ConnectionPool findPool(String name) {
+      return (name == null) ? null : pools.get(name);
+   }
+
+   /**
+    * Create pools for connections which should be warmed on startup; the connections are
+    * opened in the background
+    */
+   public void warmPools() {
+      if (dhlpData == null) return;
+      for (ConnectionData connectionData : connections.values()) {
+         if (connectionData.getWarmOnStartup() == null) connectionData.setWarmOnStartup(dhlpData.isWarmOnStartup());
+         if (!connectionData.getWarmOnStartup()) continue;
+         try {
+            getPool(connectionData.getName());
+         } catch (Exception e) {
+            System.err.println("Error warming connection " + connectionData.getName() + ": " + e);
+         }
+      }
+   }
+
    /**
     * Describe a view
     */
@@ -274,11 +335,18 @@ public class DHLPController {
     * Describe a table
     */
    public void describeObject(ConnectionPool pool, JDBCTable table) {
-      describeColumns(pool, table);
-      describePrimaryKey(pool, table);
-      describeIndices(pool, table);
-      describeChildren(pool, table);
-      describeParents(pool, table);
+      // Use one connection for the whole description
+      Connection db = null;
+      try {
+         db = pool.takeConnection();
+         describeColumns(db, table);
+         describePrimaryKey(db, table);
+         describeIndices(db, table);
+         describeChildren(db, table);
+         describeParents(db, table);
+      } finally {
+         pool.returnConnection(db);
+      }
       table.setDescribed();
    }
 
@@ -369,13 +437,7 @@ public class DHLPController {
       Connection db = null;
       try {
          db = pool.takeConnection();
-         ResultSet results = db.getMetaData().getColumns(table.getCatalog(), table.getSchema(), table.getName(), "%");
-         // Columns
-         table.addColumns(results);
-         results.close();
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new IllegalStateException("Error describing columns for " + table, e);
+         describeColumns(db, table);
       } finally {
          pool.returnConnection(db);
       }
@@ -388,13 +450,7 @@ public class DHLPController {
       Connection db = null;
       try {
          db = pool.takeConnection();
-         // Primary key columns
-         ResultSet results = db.getMetaData().getPrimaryKeys(table.getCatalog(), table.getSchema(), table.getName());
-         table.addPrimaryKey(results);
-         results.close();
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new IllegalStateException("Error describing columns for " + table, e);
+         describePrimaryKey(db, table);
       } finally {
          pool.returnConnection(db);
       }
@@ -407,12 +463,7 @@ public class DHLPController {
       Connection db = null;
       try {
          db = pool.takeConnection();
-         // Indexes
-         ResultSet results = db.getMetaData().getIndexInfo(table.getCatalog(), table.getSchema(), table.getName(), false, false);
-         table.addIndices(results);
-         results.close();
-      } catch (Exception e) {
-         System.out.println("Error getting indices for " + table + ": " + e);
+         describeIndices(db, table);
       } finally {
          pool.returnConnection(db);
       }
@@ -425,13 +476,7 @@ public class DHLPController {
       Connection db = null;
       try {
          db = pool.takeConnection();
-         // Child constraints
-         ResultSet results = db.getMetaData().getExportedKeys(table.getCatalog(), table.getSchema(), table.getName());
-         table.addChildren(results);
-         results.close();
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new IllegalStateException("Error describing table " + table, e);
+         describeChildren(db, table);
       } finally {
          pool.returnConnection(db);
       }
@@ -444,13 +489,7 @@ public class DHLPController {
       Connection db = null;
       try {
          db = pool.takeConnection();
-         // Parent constraints
-         ResultSet results = db.getMetaData().getImportedKeys(table.getCatalog(), table.getSchema(), table.getName());
-         table.addParents(results);
-         results.close();
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new IllegalStateException("Error describing table " + table, e);
+         describeParents(db, table);
       } finally {
          pool.returnConnection(db);
       }
@@ -481,6 +520,136 @@ public class DHLPController {
    // PRIVATE METHODS
    //
 
+   /**
+    * Describe the columns of a table using the given connection
+    */
+   private void describeColumns(Connection db, JDBCView table) {
+      try {
+         ResultSet results = db.getMetaData().getColumns(table.getCatalog(), table.getSchema(), table.getName(), "%");
+         // Columns
+         table.addColumns(results);
+         results.close();
+      } catch (Exception e) {
+         e.printStackTrace();
+         throw new IllegalStateException("Error describing columns for " + table, e);
+      }
+   }
+
+   /**
+    * Describe the primary keys of a table using the given connection
+    */
+   private void describePrimaryKey(Connection db, JDBCTable table) {
+      try {
+         // Primary key columns
+         ResultSet results = db.getMetaData().getPrimaryKeys(table.getCatalog(), table.getSchema(), table.getName());
+         table.addPrimaryKey(results);
+         results.close();
+      } catch (Exception e) {
+         e.printStackTrace();
+         throw new IllegalStateException("Error describing columns for " + table, e);
+      }
+   }
+
+   /**
+    * Describe the indices of a table using the given connection
+    */
+   private void describeIndices(Connection db, JDBCTable table) {
+      try {
+         // Indexes
+         ResultSet results = db.getMetaData().getIndexInfo(table.getCatalog(), table.getSchema(), table.getName(), false, false);
+         table.addIndices(results);
+         results.close();
+      } catch (Exception e) {
+         System.out.println("Error getting indices for " + table + ": " + e);
+      }
+   }
+
+   /**
+    * Describe the child references of a table using the given connection
+    */
+   private void describeChildren(Connection db, JDBCTable table) {
+      try {
+         // Child constraints
+         ResultSet results = db.getMetaData().getExportedKeys(table.getCatalog(), table.getSchema(), table.getName());
+         table.addChildren(results);
+         results.close();
+      } catch (Exception e) {
+         e.printStackTrace();
+         throw new IllegalStateException("Error describing table " + table, e);
+      }
+   }
+
+   /**
+    * Describe the parent references to a table using the given connection
+    */
+   private void describeParents(Connection db, JDBCTable table) {
+      try {
+         // Parent constraints
+         ResultSet results = db.getMetaData().getImportedKeys(table.getCatalog(), table.getSchema(), table.getName());
+         table.addParents(results);
+         results.close();
+      } catch (Exception e) {
+         e.printStackTrace();
+         throw new IllegalStateException("Error describing table " + table, e);
+      }
+   }
+
+
+   /**
+    * Publish the pool metrics as a JMX MBean
+    */
+   private void registerMetrics(ConnectionPool pool) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = getMetricsName(pool);
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+         server.registerMBean(pool.getMetrics(), objectName);
+      } catch (Exception e) {
+         System.err.println("Error registering metrics for " + pool.getName() + ": " + e);
+      }
+   }
+
+   /**
+    * Remove the pool metrics MBean
+    */
+   private void unregisterMetrics(ConnectionPool pool) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = getMetricsName(pool);
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+      } catch (Exception e) {
+         System.err.println("Error unregistering metrics for " + pool.getName() + ": " + e);
+      }
+   }
+
+   /**
+    * Publish the panel task metrics as a JMX MBean
+    */
+   private void registerTaskMetrics() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = new ObjectName(TASK_METRICS_NAME);
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+         server.registerMBean(TaskExecutor.getInstance(), objectName);
+      } catch (Exception e) {
+         System.err.println("Error registering task metrics: " + e);
+      }
+   }
+
+   private void unregisterTaskMetrics() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = new ObjectName(TASK_METRICS_NAME);
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+      } catch (Exception e) {
+         System.err.println("Error unregistering task metrics: " + e);
+      }
+   }
+
+   private ObjectName getMetricsName(ConnectionPool pool) throws Exception {
+      return new ObjectName("net.contrapt.dhlp:type=ConnectionPool,name=" + ObjectName.quote(pool.getName()));
+   }
+
    /**
     * Put connections into map
     */
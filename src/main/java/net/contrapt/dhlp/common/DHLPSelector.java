@@ -30,7 +30,8 @@ public abstract class DHLPSelector<P,V> extends ValueSelector<P,V> {
    public enum ActionEnum {
       DESCRIBE,
       INSERT,
-      SELECT
+      SELECT,
+      IMPORT
    }
    //
    // Constructors
@@ -118,6 +119,14 @@ public abstract class DHLPSelector<P,V> extends ValueSelector<P,V> {
             };
             currentAction.putValue(currentAction.ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_S, 2));
             actions.add(currentAction);
+            // Load a csv file into the selected table
+            currentAction = new AbstractAction("Import CSV") {
+               public void actionPerformed(ActionEvent e) {
+                  selectedAction = ActionEnum.IMPORT;
+               }
+            };
+            currentAction.putValue(currentAction.ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_M, 2));
+            actions.add(currentAction);
             // All done
             return actions;
          }
@@ -0,0 +1,140 @@
+package net.contrapt.dhlp.common;
+
+import net.contrapt.dhlp.model.DriverData;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads each configured jdbc driver once, in its own classloader, and connects through the driver
+ * directly rather than through DriverManager.  This avoids DriverManager's global lock when many
+ * connections are opened at once, and lets two versions of the same driver be used side by side
+ */
+public class DriverRegistry {
+
+   //
+   // PROPERTIES
+   //
+   private static DriverRegistry INSTANCE;
+
+   private ConcurrentMap<String, Driver> drivers = new ConcurrentHashMap<String, Driver>();
+   private List<URLClassLoader> loaders = new ArrayList<URLClassLoader>();
+
+   //
+   // CONSTRUCTORS
+   //
+   private DriverRegistry() {
+   }
+
+   //
+   // Static Methods
+   //
+   public static synchronized DriverRegistry getInstance() {
+      if (INSTANCE == null) INSTANCE = new DriverRegistry();
+      return INSTANCE;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Open a new connection with the given driver; the driver's classloader is the context
+    * classloader while it connects, for drivers which find their own classes through it
+    */
+   public Connection connect(DriverData data, String url, String user, String password) throws SQLException {
+      Driver driver = getDriver(data);
+      Properties info = new Properties();
+      if (user != null) info.put("user", user);
+      if (password != null) info.put("password", password);
+      Thread thread = Thread.currentThread();
+      ClassLoader contextLoader = thread.getContextClassLoader();
+      Connection connection;
+      try {
+         thread.setContextClassLoader(driver.getClass().getClassLoader());
+         connection = driver.connect(url, info);
+      } finally {
+         thread.setContextClassLoader(contextLoader);
+      }
+      if (connection == null) throw new SQLException("Driver " + data.getName() + " does not accept url " + url);
+      return connection;
+   }
+
+   /**
+    * Return the driver instance for the given driver data, loading it the first time
+    */
+   public Driver getDriver(DriverData data) throws SQLException {
+      String key = getKey(data);
+      Driver driver = drivers.get(key);
+      if (driver != null) return driver;
+      synchronized (this) {
+         driver = drivers.get(key);
+         if (driver == null) {
+            driver = load(data);
+            drivers.put(key, driver);
+         }
+      }
+      return driver;
+   }
+
+   /**
+    * Forget all loaded drivers and close their classloaders
+    */
+   public synchronized void shutdown() {
+      drivers.clear();
+      for (URLClassLoader loader : loaders) {
+         try {
+            loader.close();
+         } catch (IOException e) {
+            System.err.println("Error closing driver classloader: " + e);
+         }
+      }
+      loaders.clear();
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Drivers with the same class and jar files are the same driver
+    */
+   private String getKey(DriverData data) {
+      return data.getClassName() + "|" + data.getJarFile();
+   }
+
+   /**
+    * Load the driver class from its jar files, or from the plugin classpath if there are none; more
+    * than one jar file may be given separated by the path separator or commas
+    */
+   private Driver load(DriverData data) throws SQLException {
+      try {
+         ClassLoader parent = DriverRegistry.class.getClassLoader();
+         ClassLoader loader = parent;
+         String jarFile = data.getJarFile();
+         if (jarFile != null && !jarFile.trim().equals("")) {
+            List<URL> urls = new ArrayList<URL>();
+            for (String jar : jarFile.split("[," + File.pathSeparator + "]")) {
+               if (!jar.trim().equals("")) urls.add(new File(jar.trim()).toURI().toURL());
+            }
+            URLClassLoader jarLoader = new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+            loaders.add(jarLoader);
+            loader = jarLoader;
+         }
+         Class<?> driverClass = Class.forName(data.getClassName(), true, loader);
+         return (Driver) driverClass.getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+         throw new SQLException("Error loading driver " + data.getName() + " (" + data.getClassName() + ")", e);
+      }
+   }
+}
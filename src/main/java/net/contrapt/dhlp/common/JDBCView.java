@@ -35,6 +35,7 @@ public class JDBCView extends JDBCObject {
          while (rows.next()) {
             Column c = new Column();
             c.name = rows.getString(4);
+            c.dataType = rows.getInt(5);
             c.type = rows.getString(6);
             c.size = rows.getInt(7);
             c.precision = rows.getInt(9);
@@ -67,6 +68,7 @@ public class JDBCView extends JDBCObject {
     */
    public class Column {
       String name;
+      int dataType; // java.sql.Types
       String type;
       int size;
       int precision;
@@ -74,6 +76,14 @@ public class JDBCView extends JDBCObject {
       String comment;
       String defaultValue;
 
+      public String getName() {
+         return name;
+      }
+
+      public int getDataType() {
+         return dataType;
+      }
+
       @Override
       public String toString() {
          return name + " " + type + "(" + size + "," + precision + ") " + (nullable ? "NULL" : "NOT-NULL") + ((defaultValue == null) ? "" : " DEFAULT:" + defaultValue) +
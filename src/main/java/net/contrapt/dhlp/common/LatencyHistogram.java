@@ -0,0 +1,109 @@
+package net.contrapt.dhlp.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two microsecond buckets; percentiles are accurate to
+ * within a factor of two which is plenty to tell waiting from executing from fetching
+ */
+public class LatencyHistogram {
+
+   //
+   // PROPERTIES
+   //
+   private static final int BUCKETS = 40;
+
+   private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+   private AtomicLong count = new AtomicLong();
+   private AtomicLong total = new AtomicLong();
+   private AtomicLong max = new AtomicLong();
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Record an elapsed time in nanoseconds
+    */
+   public void record(long nanos) {
+      long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      buckets.incrementAndGet(bucket(micros));
+      count.incrementAndGet();
+      total.addAndGet(micros);
+      long current = max.get();
+      while (micros > current && !max.compareAndSet(current, micros)) {
+         current = max.get();
+      }
+   }
+
+   /**
+    * Record the time elapsed since the given System.nanoTime()
+    */
+   public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+   }
+
+   public long getCount() {
+      return count.get();
+   }
+
+   /**
+    * Return the mean in milliseconds
+    */
+   public double getMean() {
+      long n = count.get();
+      return (n == 0) ? 0 : total.get() / 1000.0 / n;
+   }
+
+   /**
+    * Return the maximum in milliseconds
+    */
+   public double getMax() {
+      return max.get() / 1000.0;
+   }
+
+   /**
+    * Return the upper bound in milliseconds of the bucket holding the given percentile (0-100)
+    */
+   public double getPercentile(double percentile) {
+      long n = count.get();
+      if (n == 0) return 0;
+      long rank = (long) Math.ceil(n * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += buckets.get(i);
+         if (seen >= rank) return Math.min(upperBound(i), max.get()) / 1000.0;
+      }
+      return getMax();
+   }
+
+   /**
+    * Clear all recorded values
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+      count.set(0);
+      total.set(0);
+      max.set(0);
+   }
+
+   @Override
+   public String toString() {
+      return String.format("n=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+            getCount(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private static int bucket(long micros) {
+      return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+   }
+
+   private static long upperBound(int bucket) {
+      return (bucket == 0) ? 0 : (1L << bucket) - 1;
+   }
+}
@@ -0,0 +1,273 @@
+package net.contrapt.dhlp.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings for a connection pool: how long borrowers wait for a connection, how long new
+ * connections take to open and how long statements take to execute and fetch
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+   //
+   // PROPERTIES
+   //
+   private ConnectionPool pool;
+   private LatencyHistogram borrowWait = new LatencyHistogram();
+   private LatencyHistogram create = new LatencyHistogram();
+   private LatencyHistogram execute = new LatencyHistogram();
+   private LatencyHistogram fetch = new LatencyHistogram();
+   private AtomicLong abandonedCloses = new AtomicLong();
+   private AtomicLong statementHits = new AtomicLong();
+   private AtomicLong statementMisses = new AtomicLong();
+   private AtomicLong leaksDetected = new AtomicLong();
+   private AtomicLong connectionsReclaimed = new AtomicLong();
+   private AtomicLong statementsTimedOut = new AtomicLong();
+   private AtomicLong connectionsEvicted = new AtomicLong();
+
+   //
+   // CONSTRUCTORS
+   //
+   PoolMetrics(ConnectionPool pool) {
+      this.pool = pool;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+   public LatencyHistogram getBorrowWait() {
+      return borrowWait;
+   }
+
+   public LatencyHistogram getCreate() {
+      return create;
+   }
+
+   public LatencyHistogram getExecute() {
+      return execute;
+   }
+
+   public LatencyHistogram getFetch() {
+      return fetch;
+   }
+
+   void leakDetected() {
+      leaksDetected.incrementAndGet();
+   }
+
+   void connectionReclaimed() {
+      connectionsReclaimed.incrementAndGet();
+   }
+
+   void statementTimedOut() {
+      statementsTimedOut.incrementAndGet();
+   }
+
+   void connectionEvicted() {
+      connectionsEvicted.incrementAndGet();
+   }
+
+   void statementHit() {
+      statementHits.incrementAndGet();
+   }
+
+   void statementMiss() {
+      statementMisses.incrementAndGet();
+   }
+
+   /**
+    * Count a connection close which timed out or couldn't be queued
+    */
+   void closeAbandoned() {
+      abandonedCloses.incrementAndGet();
+   }
+
+   /**
+    * Return a short one line summary for the status bar
+    */
+   public String getSummary() {
+      return String.format("%d/%d busy %d idle | wait %.0fms | exec %.0fms | fetch %.0fms",
+            getActiveConnections(), getMaxConnections(), getIdleConnections(),
+            borrowWait.getPercentile(95), execute.getPercentile(95), fetch.getPercentile(95));
+   }
+
+   /**
+    * Return a multi line description of all the metrics
+    */
+   public String getDescription() {
+      return getName() + ": " + getActiveConnections() + " active, " + getIdleConnections() + " idle, "
+            + getWaitingThreads() + " waiting (max " + getMaxConnections() + ")"
+            + "\nborrow wait: " + borrowWait
+            + "\nconnect: " + create
+            + "\nexecute: " + execute
+            + "\nfetch: " + fetch
+            + "\nstatement cache: " + statementHits.get() + " hits, " + statementMisses.get() + " misses"
+            + "\nleaks: " + leaksDetected.get() + " detected, " + connectionsReclaimed.get() + " reclaimed"
+            + "\ntimeouts: " + statementsTimedOut.get() + " statements cancelled, " + connectionsEvicted.get() + " connections evicted"
+            + "\nabandoned closes: " + abandonedCloses.get();
+   }
+
+   //
+   // OVERRIDES
+   //
+   @Override
+   public String getName() {
+      return pool.getName();
+   }
+
+   @Override
+   public int getMaxConnections() {
+      return pool.getMaxConnections();
+   }
+
+   @Override
+   public int getActiveConnections() {
+      return pool.activeConnections();
+   }
+
+   @Override
+   public int getIdleConnections() {
+      return pool.openConnections();
+   }
+
+   @Override
+   public int getWaitingThreads() {
+      return pool.waitingThreads();
+   }
+
+   @Override
+   public long getBorrowCount() {
+      return borrowWait.getCount();
+   }
+
+   @Override
+   public double getBorrowWaitMean() {
+      return borrowWait.getMean();
+   }
+
+   @Override
+   public double getBorrowWait95th() {
+      return borrowWait.getPercentile(95);
+   }
+
+   @Override
+   public double getBorrowWaitMax() {
+      return borrowWait.getMax();
+   }
+
+   @Override
+   public long getCreateCount() {
+      return create.getCount();
+   }
+
+   @Override
+   public double getCreateTimeMean() {
+      return create.getMean();
+   }
+
+   @Override
+   public double getCreateTime95th() {
+      return create.getPercentile(95);
+   }
+
+   @Override
+   public double getCreateTimeMax() {
+      return create.getMax();
+   }
+
+   @Override
+   public long getExecuteCount() {
+      return execute.getCount();
+   }
+
+   @Override
+   public double getExecuteTimeMean() {
+      return execute.getMean();
+   }
+
+   @Override
+   public double getExecuteTime95th() {
+      return execute.getPercentile(95);
+   }
+
+   @Override
+   public double getExecuteTimeMax() {
+      return execute.getMax();
+   }
+
+   @Override
+   public long getFetchCount() {
+      return fetch.getCount();
+   }
+
+   @Override
+   public double getFetchTimeMean() {
+      return fetch.getMean();
+   }
+
+   @Override
+   public double getFetchTime95th() {
+      return fetch.getPercentile(95);
+   }
+
+   @Override
+   public double getFetchTimeMax() {
+      return fetch.getMax();
+   }
+
+   @Override
+   public long getAbandonedCloses() {
+      return abandonedCloses.get();
+   }
+
+   @Override
+   public long getStatementCacheHits() {
+      return statementHits.get();
+   }
+
+   @Override
+   public long getStatementCacheMisses() {
+      return statementMisses.get();
+   }
+
+   @Override
+   public double getStatementCacheHitRatio() {
+      long hits = statementHits.get();
+      long total = hits + statementMisses.get();
+      return (total == 0) ? 0 : (double) hits / total;
+   }
+
+   @Override
+   public long getLeaksDetected() {
+      return leaksDetected.get();
+   }
+
+   @Override
+   public long getConnectionsReclaimed() {
+      return connectionsReclaimed.get();
+   }
+
+   @Override
+   public long getStatementsTimedOut() {
+      return statementsTimedOut.get();
+   }
+
+   @Override
+   public long getConnectionsEvicted() {
+      return connectionsEvicted.get();
+   }
+
+   @Override
+   public void reset() {
+      abandonedCloses.set(0);
+      statementsTimedOut.set(0);
+      connectionsEvicted.set(0);
+      leaksDetected.set(0);
+      connectionsReclaimed.set(0);
+      statementHits.set(0);
+      statementMisses.set(0);
+      borrowWait.reset();
+      create.reset();
+      execute.reset();
+      fetch.reset();
+   }
+}
@@ -0,0 +1,47 @@
+package net.contrapt.dhlp.common;
+
+/**
+ * JMX view of the connection pool and statement timings for one connection; times are in milliseconds
+ */
+public interface PoolMetricsMBean {
+
+   public String getName();
+   public int getMaxConnections();
+   public int getActiveConnections();
+   public int getIdleConnections();
+   public int getWaitingThreads();
+
+   public long getBorrowCount();
+   public double getBorrowWaitMean();
+   public double getBorrowWait95th();
+   public double getBorrowWaitMax();
+
+   public long getCreateCount();
+   public double getCreateTimeMean();
+   public double getCreateTime95th();
+   public double getCreateTimeMax();
+
+   public long getExecuteCount();
+   public double getExecuteTimeMean();
+   public double getExecuteTime95th();
+   public double getExecuteTimeMax();
+
+   public long getFetchCount();
+   public double getFetchTimeMean();
+   public double getFetchTime95th();
+   public double getFetchTimeMax();
+
+   public long getStatementCacheHits();
+   public long getStatementCacheMisses();
+   public double getStatementCacheHitRatio();
+
+   public long getLeaksDetected();
+   public long getConnectionsReclaimed();
+
+   public long getStatementsTimedOut();
+   public long getConnectionsEvicted();
+
+   public long getAbandonedCloses();
+
+   public void reset();
+}
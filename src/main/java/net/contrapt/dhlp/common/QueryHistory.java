@@ -0,0 +1,429 @@
+package net.contrapt.dhlp.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the timings of every statement run, by connection and statement fingerprint, in an append
+ * only file beside the configuration so how a query performs can be compared over weeks.  The file
+ * holds tab separated lines: Q lines give the text of a fingerprint and R lines a run of it.  Runs
+ * older than the retention period, or beyond the most kept for a fingerprint, are dropped when the
+ * file is compacted, which happens when it is opened and whenever it has grown enough since
+ */
+public class QueryHistory {
+
+   //
+   // PROPERTIES
+   //
+   private static QueryHistory INSTANCE;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final long RETENTION = TimeUnit.DAYS.toMillis(30);
+   // Most runs kept for a fingerprint on a connection
+   private static final int MAX_RUNS = 2000;
+   // Bytes appended after which the file is compacted again
+   private static final long COMPACT_BYTES = 4 * 1024 * 1024;
+
+   private File file;
+   private Writer out;
+   private long appended;
+   // Fingerprint text by id, and whether it has been written to the file yet
+   private Map<String, String> fingerprints = new HashMap<String, String>();
+   private Map<String, Boolean> written = new HashMap<String, Boolean>();
+   private List<Run> runs = new ArrayList<Run>();
+
+   //
+   // CONSTRUCTORS
+   //
+   private QueryHistory() {
+   }
+
+   //
+   // Static Methods
+   //
+   public static synchronized QueryHistory getInstance() {
+      if (INSTANCE == null) INSTANCE = new QueryHistory();
+      return INSTANCE;
+   }
+
+   public static synchronized void shutdown() {
+      if (INSTANCE == null) return;
+      INSTANCE.close();
+      INSTANCE.file = null;
+      INSTANCE = null;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Load and compact the history in the file, then append new runs to it
+    */
+   public synchronized void open(File file) {
+      close();
+      this.file = file;
+      fingerprints.clear();
+      written.clear();
+      runs.clear();
+      try {
+         load();
+         compact();
+      } catch (IOException e) {
+         System.err.println(getClass() + ".open(): " + e);
+      }
+   }
+
+   /**
+    * Record a run of a statement; times are in nanoseconds, with a negative first row or fetch time
+    * when the rows weren't all fetched
+    */
+   public synchronized void record(String connection, String sql, long executeNanos, long firstRowNanos, long fetchNanos, long rows) {
+      if (file == null) return;
+      String fingerprint = SqlScript.fingerprint(sql);
+      String id = SqlScript.fingerprintId(fingerprint);
+      Run run = new Run(System.currentTimeMillis(), connection, id, micros(executeNanos), micros(firstRowNanos), micros(fetchNanos), rows);
+      fingerprints.put(id, fingerprint);
+      runs.add(run);
+      try {
+         if (out == null) openAppend();
+         if (!Boolean.TRUE.equals(written.get(id))) {
+            write("Q\t" + id + "\t" + escape(fingerprint));
+            written.put(id, Boolean.TRUE);
+         }
+         write(run.toLine());
+         out.flush();
+         if (appended > COMPACT_BYTES) compact();
+      } catch (IOException e) {
+         // Reopened for the next run
+         System.err.println(getClass() + ".record(): " + e);
+         close();
+      }
+   }
+
+   /**
+    * Summarize the runs on a connection by fingerprint and day, most recently run fingerprint first
+    * and latest day first within it
+    */
+   public synchronized List<Summary> summarize(String connection) {
+      Map<String, Map<Long, List<Run>>> byFingerprint = new LinkedHashMap<String, Map<Long, List<Run>>>();
+      final Map<String, Long> lastRun = new HashMap<String, Long>();
+      for (Run run : runs) {
+         if (!run.connection.equals(connection)) continue;
+         Map<Long, List<Run>> byDay = byFingerprint.get(run.id);
+         if (byDay == null) {
+            byDay = new HashMap<Long, List<Run>>();
+            byFingerprint.put(run.id, byDay);
+         }
+         long day = startOfDay(run.time);
+         List<Run> dayRuns = byDay.get(day);
+         if (dayRuns == null) {
+            dayRuns = new ArrayList<Run>();
+            byDay.put(day, dayRuns);
+         }
+         dayRuns.add(run);
+         lastRun.put(run.id, run.time);
+      }
+      List<String> ids = new ArrayList<String>(byFingerprint.keySet());
+      Collections.sort(ids, new Comparator<String>() {
+         public int compare(String a, String b) {
+            return lastRun.get(b).compareTo(lastRun.get(a));
+         }
+      });
+      List<Summary> summaries = new ArrayList<Summary>();
+      for (String id : ids) {
+         Map<Long, List<Run>> byDay = byFingerprint.get(id);
+         List<Long> days = new ArrayList<Long>(byDay.keySet());
+         Collections.sort(days, Collections.reverseOrder());
+         for (Long day : days) {
+            summaries.add(new Summary(fingerprints.get(id), day, byDay.get(day)));
+         }
+      }
+      return summaries;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private void close() {
+      try {
+         if (out != null) out.close();
+      } catch (IOException e) {
+         System.err.println(getClass() + ".close(): " + e);
+      }
+      out = null;
+   }
+
+   private void load() throws IOException {
+      if (!file.exists()) return;
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            try {
+               if (fields[0].equals("Q") && fields.length == 3) fingerprints.put(fields[1], unescape(fields[2]));
+               else if (fields[0].equals("R") && fields.length == 8) runs.add(Run.fromFields(fields));
+            } catch (NumberFormatException e) {
+               // Skip a damaged line, such as one cut short by a crash
+            }
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Drop old runs and rewrite the file with what is left, replacing the old file once the new one is
+    * complete, then carry on appending to it
+    */
+   private void compact() throws IOException {
+      close();
+      long cutoff = System.currentTimeMillis() - RETENTION;
+      Map<String, Integer> kept = new HashMap<String, Integer>();
+      List<Run> keep = new ArrayList<Run>();
+      // Newest first so the most recent runs of each fingerprint are the ones kept
+      for (int i = runs.size() - 1; i >= 0; i--) {
+         Run run = runs.get(i);
+         if (run.time < cutoff || !fingerprints.containsKey(run.id)) continue;
+         String key = run.connection + "\t" + run.id;
+         Integer count = kept.get(key);
+         if (count != null && count >= MAX_RUNS) continue;
+         kept.put(key, (count == null) ? 1 : count + 1);
+         keep.add(run);
+      }
+      Collections.reverse(keep);
+      runs = keep;
+      written.clear();
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null) parent.mkdirs();
+      File temp = new File(file.getPath() + ".tmp");
+      boolean replaced = false;
+      try {
+         out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+         try {
+            for (Run run : runs) {
+               if (!Boolean.TRUE.equals(written.get(run.id))) {
+                  write("Q\t" + run.id + "\t" + escape(fingerprints.get(run.id)));
+                  written.put(run.id, Boolean.TRUE);
+               }
+               write(run.toLine());
+            }
+         } finally {
+            close();
+         }
+         if (file.exists() && !file.delete()) throw new IOException("Can't replace " + file);
+         if (!temp.renameTo(file)) throw new IOException("Can't rename " + temp + " to " + file);
+         replaced = true;
+         for (Iterator<String> ids = fingerprints.keySet().iterator(); ids.hasNext(); ) {
+            if (!Boolean.TRUE.equals(written.get(ids.next()))) ids.remove();
+         }
+      } finally {
+         if (!replaced) {
+            // Keep whichever file is complete and write the fingerprints again as runs are appended
+            written.clear();
+            if (!file.exists()) temp.renameTo(file);
+            else temp.delete();
+         }
+         // History carries on being recorded even if compacting failed
+         openAppend();
+      }
+   }
+
+   /**
+    * Open the file for appending runs
+    */
+   private void openAppend() throws IOException {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+      appended = 0;
+   }
+
+   private void write(String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+      appended += line.length() + 1;
+   }
+
+   private static long micros(long nanos) {
+      return (nanos < 0) ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+
+   private static long startOfDay(long time) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(time);
+      calendar.set(Calendar.HOUR_OF_DAY, 0);
+      calendar.set(Calendar.MINUTE, 0);
+      calendar.set(Calendar.SECOND, 0);
+      calendar.set(Calendar.MILLISECOND, 0);
+      return calendar.getTimeInMillis();
+   }
+
+   private static String escape(String text) {
+      return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+   }
+
+   private static String unescape(String text) {
+      StringBuilder result = new StringBuilder(text.length());
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c != '\\' || i + 1 == text.length()) {
+            result.append(c);
+            continue;
+         }
+         char next = text.charAt(++i);
+         result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      }
+      return result.toString();
+   }
+
+   /**
+    * One run of a statement; times are in microseconds
+    */
+   private static class Run {
+
+      final long time;
+      final String connection;
+      final String id;
+      final long execute;
+      final long firstRow;
+      final long fetch;
+      final long rows;
+
+      Run(long time, String connection, String id, long execute, long firstRow, long fetch, long rows) {
+         this.time = time;
+         this.connection = connection;
+         this.id = id;
+         this.execute = execute;
+         this.firstRow = firstRow;
+         this.fetch = fetch;
+         this.rows = rows;
+      }
+
+      static Run fromFields(String[] fields) {
+         return new Run(Long.parseLong(fields[1]), unescape(fields[2]), fields[3], Long.parseLong(fields[4]),
+               Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]));
+      }
+
+      String toLine() {
+         return "R\t" + time + "\t" + escape(connection) + "\t" + id + "\t" + execute + "\t" + firstRow + "\t" + fetch + "\t" + rows;
+      }
+   }
+
+   /**
+    * The runs of one fingerprint on one day; times are in milliseconds.  Total time is execution plus
+    * fetching all the rows, so only covers runs whose rows were all fetched
+    */
+   public static class Summary {
+
+      private final String fingerprint;
+      private final long day;
+      private final int runs;
+      private final double executeMedian;
+      private final double execute95th;
+      private final double firstRowMedian;
+      private final double totalMedian;
+      private final double total95th;
+      private final long averageRows;
+
+      private Summary(String fingerprint, long day, List<Run> dayRuns) {
+         this.fingerprint = fingerprint;
+         this.day = day;
+         this.runs = dayRuns.size();
+         long[] execute = new long[runs];
+         long[] firstRow = new long[runs];
+         long[] total = new long[runs];
+         int firstRows = 0;
+         int totals = 0;
+         long rows = 0;
+         int i = 0;
+         for (Run run : dayRuns) {
+            execute[i++] = run.execute;
+            if (run.firstRow >= 0) firstRow[firstRows++] = run.firstRow;
+            if (run.fetch >= 0) total[totals++] = run.execute + run.fetch;
+            rows += run.rows;
+         }
+         this.executeMedian = percentile(execute, runs, 50);
+         this.execute95th = percentile(execute, runs, 95);
+         this.firstRowMedian = percentile(firstRow, firstRows, 50);
+         this.totalMedian = percentile(total, totals, 50);
+         this.total95th = percentile(total, totals, 95);
+         this.averageRows = (runs == 0) ? 0 : rows / runs;
+      }
+
+      public String getFingerprint() {
+         return fingerprint;
+      }
+
+      /**
+       * Midnight at the start of the day
+       */
+      public long getDay() {
+         return day;
+      }
+
+      public int getRuns() {
+         return runs;
+      }
+
+      public double getExecuteMedian() {
+         return executeMedian;
+      }
+
+      public double getExecute95th() {
+         return execute95th;
+      }
+
+      /**
+       * Median time to the first row, or negative if no run fetched a row
+       */
+      public double getFirstRowMedian() {
+         return firstRowMedian;
+      }
+
+      /**
+       * Median total time, or negative if no run fetched all its rows
+       */
+      public double getTotalMedian() {
+         return totalMedian;
+      }
+
+      public double getTotal95th() {
+         return total95th;
+      }
+
+      public long getAverageRows() {
+         return averageRows;
+      }
+
+      /**
+       * Return the percentile (0-100) of the first count values in milliseconds, nearest rank
+       */
+      private static double percentile(long[] values, int count, double percentile) {
+         if (count == 0) return -1;
+         long[] sorted = Arrays.copyOf(values, count);
+         Arrays.sort(sorted);
+         int rank = (int) Math.ceil(count * percentile / 100.0);
+         return sorted[Math.max(0, rank - 1)] / 1000.0;
+      }
+   }
+}
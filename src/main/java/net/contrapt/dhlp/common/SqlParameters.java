@@ -0,0 +1,311 @@
+package net.contrapt.dhlp.common;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Finds the bind parameters in a statement: jdbc ? placeholders and :name placeholders, ignoring any
+ * inside quotes, comments, postgres dollar quotes or [] subscripts and postgres :: casts.  Named
+ * placeholders are turned into ? so the statement can be prepared, with every use of a name bound to
+ * the same value.  In PL/SQL and T-SQL blocks :name is left alone, since there it is a variable like
+ * a trigger's :new rather than something to ask for
+ */
+public class SqlParameters {
+
+   //
+   // PROPERTIES
+   //
+   private static final int UNKNOWN = Integer.MIN_VALUE;
+
+   private String sql;
+   // Names of the distinct parameters in order of first use; ? placeholders are named ?1, ?2...
+   private List<String> names = new ArrayList<String>();
+   // For each ? in the prepared sql, the index of its name
+   private List<Integer> positions = new ArrayList<Integer>();
+
+   //
+   // CONSTRUCTORS
+   //
+   private SqlParameters() {
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Find the parameters in the statement
+    */
+   public static SqlParameters parse(String statement) {
+      SqlParameters parameters = new SqlParameters();
+      parameters.sql = parameters.replace(statement);
+      return parameters;
+   }
+
+   /**
+    * The statement to prepare, with each named placeholder replaced by ?
+    */
+   public String getSql() {
+      return sql;
+   }
+
+   /**
+    * The names of the values to ask for
+    */
+   public List<String> getNames() {
+      return names;
+   }
+
+   public boolean isEmpty() {
+      return positions.isEmpty();
+   }
+
+   /**
+    * Return the sql type of each named value, from the parameter meta data of the prepared statement
+    * where the driver provides it; unknown types are guessed from the value when bound
+    */
+   public int[] getTypes(PreparedStatement statement) {
+      int[] types = new int[names.size()];
+      Arrays.fill(types, UNKNOWN);
+      ParameterMetaData meta = getMetaData(statement);
+      if (meta == null) return types;
+      for (int i = 0; i < positions.size(); i++) {
+         int name = positions.get(i);
+         if (types[name] != UNKNOWN) continue;
+         try {
+            types[name] = meta.getParameterType(i + 1);
+         } catch (Exception e) {
+            // Not all drivers can describe every parameter
+         }
+      }
+      return types;
+   }
+
+   /**
+    * Return a name for each type to show when asking for the values
+    */
+   public String[] getTypeNames(PreparedStatement statement, int[] types) {
+      String[] typeNames = new String[names.size()];
+      ParameterMetaData meta = getMetaData(statement);
+      for (int i = 0; i < positions.size(); i++) {
+         int name = positions.get(i);
+         if (typeNames[name] != null) continue;
+         try {
+            if (meta != null) typeNames[name] = meta.getParameterTypeName(i + 1);
+         } catch (Exception e) {
+            // Fall back to the jdbc type
+         }
+         if (typeNames[name] == null && types[name] != UNKNOWN) typeNames[name] = typeName(types[name]);
+      }
+      return typeNames;
+   }
+
+   /**
+    * Convert the text entered for each name to a value of its type; an empty text is null
+    */
+   public Object[] convert(String[] texts, int[] types) {
+      Object[] values = new Object[texts.length];
+      for (int i = 0; i < texts.length; i++) {
+         try {
+            values[i] = convert(texts[i], types[i]);
+         } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Value '" + texts[i] + "' for parameter " + names.get(i) + " is not a valid " + typeName(types[i]), e);
+         }
+      }
+      return values;
+   }
+
+   /**
+    * Bind the value for each name to every placeholder using it
+    */
+   public void bind(PreparedStatement statement, Object[] values, int[] types) throws SQLException {
+      statement.clearParameters();
+      for (int i = 0; i < positions.size(); i++) {
+         int name = positions.get(i);
+         Object value = values[name];
+         if (value != null) statement.setObject(i + 1, value);
+         else statement.setNull(i + 1, (types[name] == UNKNOWN) ? Types.VARCHAR : types[name]);
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private ParameterMetaData getMetaData(PreparedStatement statement) {
+      try {
+         return statement.getParameterMetaData();
+      } catch (Exception e) {
+         return null;
+      } catch (AbstractMethodError e) {
+         return null;
+      }
+   }
+
+   private static Object convert(String text, int type) {
+      if (text == null || text.length() == 0) return null;
+      switch (type) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+            return Integer.valueOf(text.trim());
+         case Types.BIGINT:
+            return Long.valueOf(text.trim());
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return Double.valueOf(text.trim());
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return new BigDecimal(text.trim());
+         case Types.BIT:
+         case Types.BOOLEAN:
+            return Boolean.valueOf(text.trim());
+         case Types.DATE:
+            return Date.valueOf(text.trim());
+         case Types.TIME:
+            return Time.valueOf(text.trim());
+         case Types.TIMESTAMP:
+            return Timestamp.valueOf(text.trim());
+         case UNKNOWN:
+            return guess(text);
+         default:
+            return text;
+      }
+   }
+
+   /**
+    * Pick a type for a value the driver couldn't describe; whole numbers and decimals are bound as
+    * numbers, anything else as a string
+    */
+   private static Object guess(String text) {
+      String trimmed = text.trim();
+      if (trimmed.matches("[-+]?\\d{1,18}")) return Long.valueOf(trimmed);
+      if (trimmed.matches("[-+]?\\d*\\.\\d+([eE][-+]?\\d+)?|[-+]?\\d+[eE][-+]?\\d+|[-+]?\\d{19,}")) return new BigDecimal(trimmed);
+      return text;
+   }
+
+   private static String typeName(int type) {
+      if (type == UNKNOWN) return "value";
+      switch (type) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+         case Types.BIGINT:
+            return "integer";
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return "number";
+         case Types.BIT:
+         case Types.BOOLEAN:
+            return "boolean";
+         case Types.DATE:
+            return "date (yyyy-mm-dd)";
+         case Types.TIME:
+            return "time (hh:mm:ss)";
+         case Types.TIMESTAMP:
+            return "timestamp (yyyy-mm-dd hh:mm:ss)";
+         default:
+            return "string";
+      }
+   }
+
+   /**
+    * Return the statement with named placeholders replaced, noting each placeholder found
+    */
+   private String replace(String statement) {
+      boolean named = !SqlScript.isProceduralBlock(statement);
+      StringBuilder text = new StringBuilder(statement.length());
+      int positional = 0;
+      int length = statement.length();
+      int i = 0;
+      while (i < length) {
+         char c = statement.charAt(i);
+         char next = (i + 1 < length) ? statement.charAt(i + 1) : 0;
+         int end = i + 1;
+         if (c == '\'' || c == '"') {
+            end = quoteEnd(statement, i, c);
+         } else if (c == '-' && next == '-') {
+            end = statement.indexOf('\n', i);
+            if (end < 0) end = length;
+         } else if (c == '/' && next == '*') {
+            end = statement.indexOf("*/", i + 2);
+            end = (end < 0) ? length : end + 2;
+         } else if (c == '$' && (i == 0 || !Character.isJavaIdentifierPart(statement.charAt(i - 1)))) {
+            Matcher matcher = SqlScript.DOLLAR_QUOTE.matcher(statement).region(i, length);
+            if (matcher.lookingAt()) {
+               end = statement.indexOf(matcher.group(), matcher.end());
+               end = (end < 0) ? length : end + matcher.group().length();
+            }
+         } else if (c == '[') {
+            end = subscriptEnd(statement, i);
+         } else if (c == ':' && next == ':') {
+            end = i + 2;
+         } else if (c == '?' && next != '|' && next != '&') {
+            add("?" + (++positional));
+         } else if (named && c == ':' && Character.isJavaIdentifierStart(next) && next != '$' && (i == 0 || statement.charAt(i - 1) != ':')) {
+            end = i + 1;
+            while (end < length && Character.isJavaIdentifierPart(statement.charAt(end)) && statement.charAt(end) != '$') end++;
+            add(statement.substring(i, end));
+            text.append('?');
+            i = end;
+            continue;
+         }
+         text.append(statement, i, end);
+         i = end;
+      }
+      return text.toString();
+   }
+
+   private void add(String name) {
+      int index = names.indexOf(name);
+      if (index < 0) {
+         index = names.size();
+         names.add(name);
+      }
+      positions.add(index);
+   }
+
+   /**
+    * Return the index just past the subscript or bracketed identifier starting at the given index,
+    * allowing for nested subscripts
+    */
+   private static int subscriptEnd(String text, int start) {
+      int depth = 0;
+      for (int i = start; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c == '[') depth++;
+         else if (c == ']' && --depth == 0) return i + 1;
+      }
+      return text.length();
+   }
+
+   /**
+    * Return the index just past the quote starting at the given index; a doubled quote is part of it
+    */
+   private static int quoteEnd(String text, int start, char quote) {
+      int i = start + 1;
+      while (i < text.length()) {
+         if (text.charAt(i) == quote) {
+            if (i + 1 < text.length() && text.charAt(i + 1) == quote) i += 2;
+            else return i + 1;
+         } else {
+            i++;
+         }
+      }
+      return i;
+   }
+}
@@ -0,0 +1,343 @@
+package net.contrapt.dhlp.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a sql script into statements.  Statements end with a semicolon or a line holding only / or
+ * go, ignoring any inside quotes, comments or postgres dollar quotes.  PL/SQL and T-SQL blocks (an
+ * anonymous begin or declare block, or a procedure, function, package, trigger or type body) keep
+ * their semicolons and only end at a / or go line; transaction control like begin; and ordinary ddl
+ * like create type ... as enum split as usual.  A script without any of these delimiters is split on
+ * blank lines instead
+ */
+public class SqlScript {
+
+   //
+   // PROPERTIES
+   //
+   // Anonymous blocks, but not begin [transaction|work]; (which starts a transaction) or a cursor
+   private static final Pattern ANONYMOUS_BLOCK = Pattern.compile(
+         "^(begin(?!\\s*$|\\s+(transaction|tran|work|isolation|read|deferrable|not)\\b)|declare(?!\\s*$|\\s+\\S+\\s+(binary|insensitive|asensitive|no|scroll|cursor)\\b))\\b",
+         Pattern.CASE_INSENSITIVE);
+   // Stored code whose body is procedural once it reaches as, is or begin
+   private static final Pattern STORED_BLOCK = Pattern.compile(
+         "^create\\s+(or\\s+replace\\s+)?((editionable|noneditionable)\\s+)?(procedure|function|package|type\\s+body)\\b.*?\\b(as|is|begin)\\b(?!\\s*')",
+         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+   // Triggers only have a procedural body in the dialects which start it with begin or declare
+   private static final Pattern TRIGGER_BLOCK = Pattern.compile(
+         "^create\\s+(or\\s+replace\\s+)?((editionable|noneditionable)\\s+)?trigger\\b.*?\\b(begin|declare)\\b",
+         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+   private static final Pattern DML = Pattern.compile("^(insert|update|delete|merge|upsert)\\b", Pattern.CASE_INSENSITIVE);
+   private static final Pattern QUERY = Pattern.compile("^(select|with|values|show)\\b", Pattern.CASE_INSENSITIVE);
+   // Queries which lock, create or change something despite starting like a query
+   private static final Pattern NOT_READ_ONLY = Pattern.compile(
+         "\\b(for\\s+update|for\\s+share|into|insert|update|delete|merge|nextval|setval)\\b|\\.nextval\\b", Pattern.CASE_INSENSITIVE);
+   private static final Pattern NUMBER = Pattern.compile("(?<![\\w$.])\\d+(\\.\\d+)?([eE][-+]?\\d+)?(?![\\w$])");
+   private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+   private static final Pattern OPERATOR_SPACE = Pattern.compile(" ?([=<>!,]) ?|(?<=\\() | (?=\\))");
+   static final Pattern DOLLAR_QUOTE = Pattern.compile("\\$[A-Za-z_]*\\$");
+
+   private static final int NORMAL = 0;
+   private static final int SINGLE_QUOTE = 1;
+   private static final int DOUBLE_QUOTE = 2;
+   private static final int LINE_COMMENT = 3;
+   private static final int BLOCK_COMMENT = 4;
+   private static final int DOLLAR = 5;
+
+   private String script;
+   private boolean blankLines;
+   private List<String> statements = new ArrayList<String>();
+   private StringBuilder current = new StringBuilder();
+   private int delimiters;
+   private boolean dollarQuoted;
+
+   //
+   // CONSTRUCTORS
+   //
+   private SqlScript(String script, boolean blankLines) {
+      this.script = script;
+      this.blankLines = blankLines;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Return the statements in the script without their delimiters
+    */
+   public static List<String> split(String script) {
+      if (script == null) return new ArrayList<String>();
+      SqlScript splitter = new SqlScript(script, false);
+      splitter.split();
+      if (splitter.delimiters > 0) return splitter.statements;
+      splitter = new SqlScript(script, true);
+      splitter.split();
+      return splitter.statements;
+   }
+
+   /**
+    * Whether the statement changes rows, so can be sent in a batch with others
+    */
+   public static boolean isDml(String statement) {
+      return DML.matcher(stripLeadingComments(statement)).find();
+   }
+
+   /**
+    * Whether the statement is a PL/SQL or T-SQL block: an anonymous begin or declare block, or a
+    * procedure, function, package, trigger or type body
+    */
+   public static boolean isProceduralBlock(String statement) {
+      if (statement == null) return false;
+      String text = stripLiterals(normalize(statement));
+      return ANONYMOUS_BLOCK.matcher(text).find() || STORED_BLOCK.matcher(text).find() || TRIGGER_BLOCK.matcher(text).find();
+   }
+
+   /**
+    * Whether the statement only reads, so its results can be reused until something changes; a quick
+    * check of the text which errs towards saying no
+    */
+   public static boolean isReadOnly(String statement) {
+      if (statement == null) return false;
+      String text = stripLiterals(normalize(statement));
+      return QUERY.matcher(text).find() && !NOT_READ_ONLY.matcher(text).find();
+   }
+
+   /**
+    * Return the statement without comments, with runs of white space outside quotes made a single
+    * space and without a trailing semicolon, so trivially different copies of it compare equal
+    */
+   public static String normalize(String statement) {
+      StringBuilder text = new StringBuilder(statement.length());
+      int length = statement.length();
+      boolean space = false;
+      int i = 0;
+      while (i < length) {
+         char c = statement.charAt(i);
+         char next = (i + 1 < length) ? statement.charAt(i + 1) : 0;
+         if (c == '-' && next == '-') {
+            int end = statement.indexOf('\n', i);
+            i = (end < 0) ? length : end;
+            space = true;
+         } else if (c == '/' && next == '*') {
+            int end = statement.indexOf("*/", i + 2);
+            i = (end < 0) ? length : end + 2;
+            space = true;
+         } else if (Character.isWhitespace(c)) {
+            space = true;
+            i++;
+         } else {
+            if (space && text.length() > 0) text.append(' ');
+            space = false;
+            int end = (c == '\'' || c == '"') ? quoteEnd(statement, i, c) : i + 1;
+            text.append(statement, i, end);
+            i = end;
+         }
+      }
+      while (text.length() > 0 && text.charAt(text.length() - 1) == ';') {
+         text.setLength(text.length() - 1);
+      }
+      return text.toString().trim();
+   }
+
+   /**
+    * Return the statement with its literals and bind parameters replaced by ?, lists of them collapsed,
+    * no spaces around operators and its words in lower case, so runs of the same query with different
+    * values look the same
+    */
+   public static String fingerprint(String statement) {
+      String text = SqlParameters.parse(normalize(statement)).getSql();
+      StringBuilder fingerprint = new StringBuilder(text.length());
+      int i = 0;
+      while (i < text.length()) {
+         char c = text.charAt(i);
+         if (c == '\'') {
+            fingerprint.append('?');
+            i = quoteEnd(text, i, c);
+         } else if (c == '"') {
+            int end = quoteEnd(text, i, c);
+            fingerprint.append(text, i, end);
+            i = end;
+         } else {
+            fingerprint.append(Character.toLowerCase(c));
+            i++;
+         }
+      }
+      text = NUMBER.matcher(fingerprint).replaceAll("?");
+      text = OPERATOR_SPACE.matcher(text).replaceAll("$1");
+      return PLACEHOLDER_LIST.matcher(text).replaceAll("(?+)");
+   }
+
+   /**
+    * Return a short id for a fingerprint
+    */
+   public static String fingerprintId(String fingerprint) {
+      // 64 bit FNV-1a
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < fingerprint.length(); i++) {
+         hash ^= fingerprint.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return String.format("%016x", hash);
+   }
+
+   /**
+    * Remove comments and white space from the start of the statement
+    */
+   public static String stripLeadingComments(String statement) {
+      String text = statement.trim();
+      while (true) {
+         if (text.startsWith("--")) {
+            int end = text.indexOf('\n');
+            text = (end < 0) ? "" : text.substring(end + 1).trim();
+         } else if (text.startsWith("/*")) {
+            int end = text.indexOf("*/");
+            text = (end < 0) ? "" : text.substring(end + 2).trim();
+         } else {
+            return text;
+         }
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Return the index just past the quote starting at the given index; a doubled quote is part of it
+    */
+   private static int quoteEnd(String text, int start, char quote) {
+      int i = start + 1;
+      while (i < text.length()) {
+         if (text.charAt(i) == quote) {
+            if (i + 1 < text.length() && text.charAt(i + 1) == quote) i += 2;
+            else return i + 1;
+         } else {
+            i++;
+         }
+      }
+      return i;
+   }
+
+   /**
+    * Replace quoted strings with empty ones so words inside them aren't mistaken for keywords
+    */
+   private static String stripLiterals(String text) {
+      StringBuilder stripped = new StringBuilder(text.length());
+      int i = 0;
+      while (i < text.length()) {
+         char c = text.charAt(i);
+         if (c == '\'') {
+            stripped.append("''");
+            i = quoteEnd(text, i, c);
+         } else {
+            stripped.append(c);
+            i++;
+         }
+      }
+      return stripped.toString();
+   }
+
+   private void split() {
+      int state = NORMAL;
+      String dollarTag = null;
+      boolean lineStart = true;
+      int length = script.length();
+      int i = 0;
+      while (i < length) {
+         char c = script.charAt(i);
+         char next = (i + 1 < length) ? script.charAt(i + 1) : 0;
+         if (state == NORMAL) {
+            if (lineStart) {
+               int end = script.indexOf('\n', i);
+               if (end < 0) end = length;
+               String line = script.substring(i, end).trim();
+               boolean delimiter = line.equals("/") || line.equalsIgnoreCase("go");
+               if (delimiter || (blankLines && line.length() == 0)) {
+                  if (delimiter) delimiters++;
+                  endStatement();
+                  i = end + 1;
+                  continue;
+               }
+            }
+            if (c == '\'') {
+               state = SINGLE_QUOTE;
+            } else if (c == '"') {
+               state = DOUBLE_QUOTE;
+            } else if (c == '-' && next == '-') {
+               state = LINE_COMMENT;
+            } else if (c == '/' && next == '*') {
+               state = BLOCK_COMMENT;
+               current.append(c);
+               c = next;
+               i++;
+            } else if (c == '$') {
+               Matcher matcher = DOLLAR_QUOTE.matcher(script).region(i, length);
+               if (matcher.lookingAt()) {
+                  dollarTag = matcher.group();
+                  dollarQuoted = true;
+                  state = DOLLAR;
+                  current.append(dollarTag);
+                  i += dollarTag.length();
+                  lineStart = false;
+                  continue;
+               }
+            } else if (c == ';' && !isBlock()) {
+               delimiters++;
+               endStatement();
+               i++;
+               lineStart = false;
+               continue;
+            }
+         } else if (state == SINGLE_QUOTE) {
+            if (c == '\'' && next == '\'') {
+               current.append(c);
+               i++;
+            } else if (c == '\'') {
+               state = NORMAL;
+            }
+         } else if (state == DOUBLE_QUOTE) {
+            if (c == '"') state = NORMAL;
+         } else if (state == LINE_COMMENT) {
+            if (c == '\n') state = NORMAL;
+         } else if (state == BLOCK_COMMENT) {
+            if (c == '*' && next == '/') {
+               current.append(c);
+               c = next;
+               i++;
+               state = NORMAL;
+            }
+         } else if (state == DOLLAR) {
+            if (script.startsWith(dollarTag, i)) {
+               current.append(dollarTag);
+               i += dollarTag.length();
+               state = NORMAL;
+               lineStart = false;
+               continue;
+            }
+         }
+         current.append(c);
+         lineStart = (c == '\n');
+         i++;
+      }
+      endStatement();
+   }
+
+   /**
+    * Whether the statement so far is a procedural block, which may hold semicolons; postgres functions
+    * are dollar quoted so end with a semicolon as usual
+    */
+   private boolean isBlock() {
+      return !dollarQuoted && isProceduralBlock(current.toString());
+   }
+
+   private void endStatement() {
+      String statement = current.toString().trim();
+      if (stripLeadingComments(statement).length() > 0) statements.add(statement);
+      current.setLength(0);
+      dollarQuoted = false;
+   }
+}
@@ -0,0 +1,328 @@
+package net.contrapt.dhlp.common;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import net.contrapt.dhlp.model.ConnectionData;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages ssh tunnels for connections which go through a bastion host.  One ssh session is shared
+ * by every pool using the same host and user, and each remote database gets a local port forward
+ * on that session.  Sessions send keep-alives and are reconnected in the background with backoff
+ * when they drop; a borrower needing a dropped session tries it once, within the same backoff, and
+ * gets the ssh error if it can't be reached
+ */
+public class SshTunnelManager {
+
+   //
+   // PROPERTIES
+   //
+   private static SshTunnelManager INSTANCE;
+
+   private static final int SSH_PORT = 22;
+   private static final int ALIVE_INTERVAL = 15000;
+   private static final int ALIVE_COUNT_MAX = 3;
+   // Longest wait for the bastion to answer, rather than the os tcp timeout
+   private static final int CONNECT_TIMEOUT = 15000;
+   private static final long MONITOR_INTERVAL = 5000;
+   private static final long MIN_BACKOFF = 1000;
+   private static final long MAX_BACKOFF = 60000;
+
+   private Map<String, SshSession> sessions = new HashMap<String, SshSession>();
+   private ScheduledExecutorService monitor;
+
+   //
+   // CONSTRUCTORS
+   //
+   private SshTunnelManager() {
+   }
+
+   //
+   // Static Methods
+   //
+   public static synchronized SshTunnelManager getInstance() {
+      if (INSTANCE == null) INSTANCE = new SshTunnelManager();
+      return INSTANCE;
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Return a tunnel to the connection's remote database, sharing the ssh session and port forward
+    * with any other pool using the same ones; the caller must release the tunnel when done
+    */
+   public synchronized Tunnel open(ConnectionData data) {
+      String key = data.getSshUser() + "@" + data.getSshHost();
+      SshSession session = sessions.get(key);
+      if (session == null) {
+         session = new SshSession(data);
+         sessions.put(key, session);
+      }
+      Forward forward = session.addForward(data);
+      startMonitor();
+      return new Tunnel(session, forward);
+   }
+
+   /**
+    * Release a tunnel; the ssh session is disconnected once no pools are using it
+    */
+   public synchronized void release(Tunnel tunnel) {
+      SshSession session = tunnel.session;
+      session.removeForward(tunnel.forward);
+      if (session.isUnused()) {
+         session.disconnect();
+         sessions.remove(session.key);
+      }
+   }
+
+   /**
+    * Disconnect all sessions and stop monitoring them
+    */
+   public synchronized void shutdown() {
+      for (SshSession session : sessions.values()) {
+         session.disconnect();
+      }
+      sessions.clear();
+      if (monitor != null) {
+         monitor.shutdownNow();
+         monitor = null;
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Start checking sessions in the background
+    */
+   private void startMonitor() {
+      if (monitor != null) return;
+      monitor = Executors.newSingleThreadScheduledExecutor(ConnectionPool.daemonThreads("SshTunnelManager.monitor"));
+      monitor.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            reconnectDropped();
+         }
+      }, MONITOR_INTERVAL, MONITOR_INTERVAL, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Try to reconnect any sessions which have dropped, backing off between failed attempts
+    */
+   private void reconnectDropped() {
+      List<SshSession> current;
+      synchronized (this) {
+         current = new ArrayList<SshSession>(sessions.values());
+      }
+      long now = System.currentTimeMillis();
+      for (SshSession session : current) {
+         session.reconnectIfDue(now);
+      }
+   }
+
+   /**
+    * A handle on a port forward through a shared ssh session
+    */
+   public static class Tunnel {
+
+      private SshSession session;
+      private Forward forward;
+
+      private Tunnel(SshSession session, Forward forward) {
+         this.session = session;
+         this.forward = forward;
+      }
+
+      /**
+       * Reconnect the session now if it has dropped and make sure the port is forwarded; throws
+       * IllegalStateException with the ssh error if either fails
+       */
+      public void ensureConnected() {
+         session.ensureConnected(forward);
+      }
+
+      /**
+       * Return the local port forwarded to the remote database
+       */
+      public int getLocalPort() {
+         return forward.localPort;
+      }
+   }
+
+   /**
+    * A local port forward to a remote host and port
+    */
+   private static class Forward {
+
+      String remoteHost;
+      int remotePort;
+      // Zero until the session assigns a port when none was configured
+      int localPort;
+      int references;
+      // Why the port couldn't be forwarded the last time it was tried
+      JSchException error;
+
+      Forward(String remoteHost, int remotePort, int localPort) {
+         this.remoteHost = remoteHost;
+         this.remotePort = remotePort;
+         this.localPort = localPort;
+      }
+   }
+
+   /**
+    * An ssh session shared by the pools connecting through the same host and user
+    */
+   private static class SshSession {
+
+      String key;
+      String host;
+      String user;
+      String password;
+      String keyFile;
+      String passphrase;
+      Session session;
+      Map<String, Forward> forwards = new HashMap<String, Forward>();
+      long backoff;
+      long nextAttempt;
+      JSchException lastError;
+
+      SshSession(ConnectionData data) {
+         this.key = data.getSshUser() + "@" + data.getSshHost();
+         this.host = data.getSshHost();
+         this.user = data.getSshUser();
+         this.password = (data.getSshPassword() != null) ? data.getSshPassword() : data.getPassword();
+         this.keyFile = data.getSshKeyFile();
+         this.passphrase = data.getSshPassphrase();
+      }
+
+      synchronized Forward addForward(ConnectionData data) {
+         String forwardKey = data.getSshRemoteHost() + ":" + data.getSshRemotePort();
+         Forward forward = forwards.get(forwardKey);
+         if (forward == null) {
+            int localPort = (data.getSshLocalPort() == null) ? 0 : data.getSshLocalPort();
+            forward = new Forward(data.getSshRemoteHost(), data.getSshRemotePort(), localPort);
+            forwards.put(forwardKey, forward);
+            if (isConnected()) forward(forward);
+         }
+         forward.references++;
+         return forward;
+      }
+
+      synchronized void removeForward(Forward forward) {
+         if (--forward.references > 0) return;
+         forwards.remove(forward.remoteHost + ":" + forward.remotePort);
+         if (isConnected()) {
+            try {
+               session.delPortForwardingL(forward.localPort);
+            } catch (JSchException e) {
+               System.err.println("Error removing port forward " + forward.localPort + " on " + key + ": " + e);
+            }
+         }
+      }
+
+      synchronized boolean isUnused() {
+         return forwards.isEmpty();
+      }
+
+      synchronized boolean isConnected() {
+         return session != null && session.isConnected();
+      }
+
+      /**
+       * Connect now if not connected, unless still backing off from a failed attempt, and forward the
+       * port again if that failed before
+       */
+      synchronized void ensureConnected(Forward forward) {
+         if (!isConnected()) {
+            long now = System.currentTimeMillis();
+            if (now < nextAttempt) {
+               throw new IllegalStateException("Ssh session " + key + " is down, retrying in " + (nextAttempt - now) + "ms: " + lastError.getMessage(), lastError);
+            }
+            try {
+               connect();
+            } catch (JSchException e) {
+               failed(now, e);
+               throw new IllegalStateException("Error connecting ssh session " + key + ": " + e.getMessage(), e);
+            }
+         }
+         if (forward.error != null) forward(forward);
+         if (forward.error != null) {
+            throw new IllegalStateException("Error forwarding port " + forward.localPort + " to " + forward.remoteHost + ":" + forward.remotePort
+                  + " on " + key + ": " + forward.error.getMessage(), forward.error);
+         }
+      }
+
+      /**
+       * Reconnect from the background monitor unless still backing off from a failed attempt
+       */
+      synchronized void reconnectIfDue(long now) {
+         if (forwards.isEmpty() || isConnected() || now < nextAttempt) return;
+         try {
+            connect();
+         } catch (JSchException e) {
+            failed(now, e);
+            System.err.println("Error reconnecting ssh session " + key + ", retrying in " + backoff + "ms: " + e);
+         }
+      }
+
+      private void failed(long now, JSchException e) {
+         backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+         nextAttempt = now + backoff;
+         lastError = e;
+      }
+
+      /**
+       * Open the session and set up all of the port forwards; ports which were assigned before
+       * are reused so existing urls still work
+       */
+      private void connect() throws JSchException {
+         disconnect();
+         java.util.Properties config = new java.util.Properties();
+         config.put("StrictHostKeyChecking", "no");
+         JSch jsch = new JSch();
+         if (keyFile != null) {
+            jsch.addIdentity(new File(keyFile).getAbsolutePath(), passphrase);
+         }
+         Session newSession = jsch.getSession(user, host, SSH_PORT);
+         newSession.setConfig(config);
+         newSession.setPassword(password);
+         newSession.setServerAliveInterval(ALIVE_INTERVAL);
+         newSession.setServerAliveCountMax(ALIVE_COUNT_MAX);
+         newSession.connect(CONNECT_TIMEOUT);
+         session = newSession;
+         for (Forward forward : forwards.values()) {
+            forward(forward);
+         }
+         backoff = 0;
+         nextAttempt = 0;
+         lastError = null;
+      }
+
+      private void forward(Forward forward) {
+         try {
+            forward.localPort = session.setPortForwardingL(forward.localPort, forward.remoteHost, forward.remotePort);
+            forward.error = null;
+         } catch (JSchException e) {
+            forward.error = e;
+            System.err.println("Error forwarding port " + forward.localPort + " to " + forward.remoteHost + ":" + forward.remotePort + ": " + e);
+         }
+      }
+
+      synchronized void disconnect() {
+         if (session != null) session.disconnect();
+         session = null;
+      }
+   }
+}
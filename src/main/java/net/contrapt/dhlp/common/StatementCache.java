@@ -0,0 +1,149 @@
+package net.contrapt.dhlp.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of prepared statements for one connection, keyed by sql text
+ * and result set type.  A statement is taken out of the cache while it is in use and put back when
+ * it is released, so the same statement is never handed out twice
+ */
+public class StatementCache {
+
+   //
+   // PROPERTIES
+   //
+   private Connection connection;
+   private int maxSize;
+   private PoolMetrics metrics;
+   // Idle statements in least recently used order
+   private LinkedHashMap<Key, PreparedStatement> statements;
+   // Statements handed out and the key to put them back under
+   private Map<PreparedStatement, Key> inUse = new IdentityHashMap<PreparedStatement, Key>();
+   // The driver's max rows, fetch size and query timeout for each statement when it was prepared
+   private Map<PreparedStatement, int[]> defaults = new IdentityHashMap<PreparedStatement, int[]>();
+
+   //
+   // CONSTRUCTORS
+   //
+   StatementCache(Connection connection, int maxSize, PoolMetrics metrics) {
+      this.connection = connection;
+      this.maxSize = maxSize;
+      this.metrics = metrics;
+      this.statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+            if (size() <= StatementCache.this.maxSize) return false;
+            close(eldest.getValue());
+            return true;
+         }
+      };
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Return a cached statement for the sql if there is one, otherwise prepare a new one
+    */
+   public synchronized PreparedStatement prepare(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+      Key key = new Key(sql, resultSetType, resultSetConcurrency);
+      PreparedStatement statement = statements.remove(key);
+      if (statement != null && !statement.isClosed()) {
+         metrics.statementHit();
+      } else {
+         if (statement != null) defaults.remove(statement);
+         metrics.statementMiss();
+         statement = connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+         defaults.put(statement, new int[]{statement.getMaxRows(), statement.getFetchSize(), statement.getQueryTimeout()});
+      }
+      inUse.put(statement, key);
+      return statement;
+   }
+
+   /**
+    * Put a statement back in the cache with its parameters cleared and its max rows, fetch size and
+    * query timeout back to the driver's defaults, so nothing one user set carries over to the next;
+    * statements which didn't come from the cache, or which would duplicate one already cached, are
+    * closed
+    */
+   public synchronized void release(PreparedStatement statement) {
+      if (statement == null) return;
+      Key key = inUse.remove(statement);
+      if (key == null || maxSize <= 0 || statements.containsKey(key)) {
+         close(statement);
+         return;
+      }
+      try {
+         int[] initial = defaults.get(statement);
+         if (initial == null) {
+            close(statement);
+            return;
+         }
+         statement.clearParameters();
+         statement.clearWarnings();
+         statement.setMaxRows(initial[0]);
+         statement.setFetchSize(initial[1]);
+         statement.setQueryTimeout(initial[2]);
+         statements.put(key, statement);
+      } catch (SQLException e) {
+         close(statement);
+      }
+   }
+
+   /**
+    * Close all cached statements
+    */
+   public synchronized void close() {
+      for (Iterator<PreparedStatement> i = statements.values().iterator(); i.hasNext(); ) {
+         close(i.next());
+         i.remove();
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+   private void close(PreparedStatement statement) {
+      defaults.remove(statement);
+      try {
+         statement.close();
+      } catch (SQLException e) {
+         System.err.println("Error closing cached statement: " + e);
+      }
+   }
+
+   /**
+    * Statements are shared only for the same sql and result set type
+    */
+   private static class Key {
+
+      final String sql;
+      final int resultSetType;
+      final int resultSetConcurrency;
+
+      Key(String sql, int resultSetType, int resultSetConcurrency) {
+         this.sql = sql;
+         this.resultSetType = resultSetType;
+         this.resultSetConcurrency = resultSetConcurrency;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) return false;
+         Key other = (Key) o;
+         return sql.equals(other.sql) && resultSetType == other.resultSetType && resultSetConcurrency == other.resultSetConcurrency;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * (31 * sql.hashCode() + resultSetType) + resultSetConcurrency;
+      }
+   }
+}
@@ -0,0 +1,195 @@
+package net.contrapt.dhlp.common;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces statement timeouts for drivers which ignore Statement.setQueryTimeout().  A statement still
+ * running shortly after its deadline is cancelled; if the cancel doesn't take effect either, its
+ * connection is closed and evicted from the pool so it stops holding a pooled connection and whatever
+ * the database is doing for it
+ */
+public class StatementWatchdog {
+
+   //
+   // PROPERTIES
+   //
+   private static StatementWatchdog INSTANCE;
+
+   // Time given to the driver's own timeout before the watchdog cancels (ms)
+   private static final long DRIVER_GRACE = 2000;
+   // Time given to a cancel before the connection is evicted (ms)
+   private static final long CANCEL_GRACE = 10000;
+   // Cancels and closes can block, so more than one is allowed at a time
+   private static final int THREADS = 2;
+
+   private ScheduledThreadPoolExecutor timer;
+
+   //
+   // CONSTRUCTORS
+   //
+   private StatementWatchdog() {
+      timer = new ScheduledThreadPoolExecutor(THREADS, ConnectionPool.daemonThreads("StatementWatchdog"));
+      timer.setRemoveOnCancelPolicy(true);
+   }
+
+   //
+   // Static Methods
+   //
+   public static synchronized StatementWatchdog getInstance() {
+      if (INSTANCE == null) INSTANCE = new StatementWatchdog();
+      return INSTANCE;
+   }
+
+   public static synchronized void shutdown() {
+      if (INSTANCE == null) return;
+      INSTANCE.timer.shutdownNow();
+      INSTANCE = null;
+   }
+
+   /**
+    * Pass the timeout to the driver; drivers which don't support it are left to the watchdog
+    */
+   public static void setQueryTimeout(Statement statement, int seconds) {
+      try {
+         statement.setQueryTimeout(Math.max(0, seconds));
+      } catch (SQLException e) {
+         System.err.println(StatementWatchdog.class + ".setQueryTimeout(): " + e);
+      } catch (AbstractMethodError e) {
+         System.err.println(StatementWatchdog.class + ".setQueryTimeout(): " + e);
+      }
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Start watching a statement running on a connection borrowed from the pool; the caller must call
+    * done() on the returned watch when the statement returns, then check isEvicted() whether or not
+    * the statement succeeded.  A timeout of zero watches nothing
+    */
+   public Watch watch(ConnectionPool pool, Connection connection, Statement statement, int seconds) {
+      Watch watch = new Watch(pool, connection, statement, seconds);
+      if (seconds > 0) watch.schedule(TimeUnit.SECONDS.toMillis(seconds) + DRIVER_GRACE);
+      return watch;
+   }
+
+   /**
+    * The watch kept on one run of a statement
+    */
+   public class Watch {
+
+      private final ConnectionPool pool;
+      private final Connection connection;
+      private final Statement statement;
+      private final int seconds;
+      private ScheduledFuture<?> future;
+      private boolean done;
+      // Set while the watchdog is cancelling the statement or evicting its connection
+      private boolean acting;
+      private volatile boolean cancelled;
+      private volatile boolean evicted;
+
+      private Watch(ConnectionPool pool, Connection connection, Statement statement, int seconds) {
+         this.pool = pool;
+         this.connection = connection;
+         this.statement = statement;
+         this.seconds = seconds;
+      }
+
+      /**
+       * Stop watching; the statement has returned.  If the watchdog is cancelling or evicting at that
+       * moment this waits for it to finish, so nothing happens to the statement or connection after
+       */
+      public synchronized void done() {
+         done = true;
+         if (future != null) future.cancel(false);
+         boolean interrupted = false;
+         while (acting) {
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               interrupted = true;
+            }
+         }
+         if (interrupted) Thread.currentThread().interrupt();
+      }
+
+      /**
+       * Whether the watchdog had to cancel the statement
+       */
+      public boolean isCancelled() {
+         return cancelled;
+      }
+
+      /**
+       * Whether the statement's connection was closed and evicted from the pool
+       */
+      public boolean isEvicted() {
+         return evicted;
+      }
+
+      /**
+       * Describe what the watchdog did, for an error message
+       */
+      public String getDescription() {
+         if (evicted) return "Statement ran past its " + seconds + "s timeout and didn't cancel; its connection was closed";
+         return "Statement ran past its " + seconds + "s timeout and was cancelled";
+      }
+
+      private synchronized void schedule(long delay) {
+         if (done) return;
+         try {
+            future = timer.schedule(new Runnable() {
+               @Override
+               public void run() {
+                  expired();
+               }
+            }, delay, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException e) {
+            // Shutting down
+         }
+      }
+
+      /**
+       * Cancel the statement the first time round, then evict the connection if it is still busy
+       */
+      private void expired() {
+         synchronized (this) {
+            if (done) return;
+            acting = true;
+         }
+         try {
+            act();
+         } finally {
+            synchronized (this) {
+               acting = false;
+               notifyAll();
+            }
+         }
+      }
+
+      private void act() {
+         if (!cancelled) {
+            cancelled = true;
+            pool.getMetrics().statementTimedOut();
+            try {
+               statement.cancel();
+            } catch (SQLException e) {
+               System.err.println(getClass() + ".expired(): " + e);
+            }
+            schedule(CANCEL_GRACE);
+         } else {
+            evicted = true;
+            System.err.println("Closing connection to " + pool.getName() + ": statement still running " + CANCEL_GRACE + "ms after being cancelled");
+            pool.evictConnection(connection);
+         }
+      }
+   }
+}
@@ -0,0 +1,389 @@
+package net.contrapt.dhlp.common;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the jdbc work of the sql panels on a shared, bounded set of threads.  Each panel gets its own
+ * lane which runs its tasks one at a time in the order they were submitted, so a close can't overtake
+ * the execute before it.  Virtual threads are used when the jvm has them, with the number running at
+ * once still bounded; otherwise a fixed pool of daemon threads.  Urgent work such as cancelling a
+ * running statement skips the lanes and the bound
+ */
+public class TaskExecutor implements TaskExecutorMBean {
+
+   //
+   // PROPERTIES
+   //
+   private static TaskExecutor INSTANCE;
+   // Set once the plugin has stopped, so a late task can't start a new executor nothing would stop
+   private static boolean stopped;
+
+   // Most lane tasks running at once across all panels
+   private static final int MAX_THREADS = 16;
+   // How long shutdown waits for running tasks
+   private static final long SHUTDOWN_TIMEOUT = 2000;
+
+   private final boolean virtual;
+   private ExecutorService workers;
+   private ExecutorService urgent;
+   // Bounds the running tasks when each gets its own virtual thread
+   private final Semaphore permits = new Semaphore(MAX_THREADS);
+   private final AtomicInteger queued = new AtomicInteger();
+   private final AtomicInteger active = new AtomicInteger();
+   private final AtomicInteger lanes = new AtomicInteger();
+   private final LatencyHistogram queueWait = new LatencyHistogram();
+   private final LatencyHistogram taskTime = new LatencyHistogram();
+
+   //
+   // CONSTRUCTORS
+   //
+   private TaskExecutor() {
+      ExecutorService threads = newVirtualThreadExecutor();
+      virtual = (threads != null);
+      if (virtual) {
+         workers = threads;
+         urgent = newVirtualThreadExecutor();
+      } else {
+         ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+               new LinkedBlockingQueue<Runnable>(), ConnectionPool.daemonThreads("SQLPanel.task"));
+         pool.allowCoreThreadTimeOut(true);
+         workers = pool;
+         urgent = Executors.newCachedThreadPool(ConnectionPool.daemonThreads("SQLPanel.urgent"));
+      }
+   }
+
+   //
+   // Static Methods
+   //
+   /**
+    * Return the executor; throws RejectedExecutionException once it has been shut down, until start()
+    * is called again
+    */
+   public static synchronized TaskExecutor getInstance() {
+      if (stopped) throw new RejectedExecutionException("Task executor has been shut down");
+      if (INSTANCE == null) INSTANCE = new TaskExecutor();
+      return INSTANCE;
+   }
+
+   /**
+    * Allow getInstance() to create a new executor after a shutdown, when the plugin starts again
+    */
+   public static synchronized void start() {
+      stopped = false;
+   }
+
+   /**
+    * Stop the threads, waiting a short while for running tasks.  Tasks still waiting in a lane aren't
+    * dropped: they run one after another on the thread which finishes the lane's running task, so a
+    * panel's close queued behind a slow statement still returns its connection
+    */
+   public static void shutdown() {
+      TaskExecutor executor;
+      synchronized (TaskExecutor.class) {
+         executor = INSTANCE;
+         INSTANCE = null;
+         stopped = true;
+      }
+      if (executor == null) return;
+      executor.workers.shutdown();
+      executor.urgent.shutdownNow();
+      try {
+         if (!executor.workers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) executor.drain(executor.workers.shutdownNow());
+      } catch (InterruptedException e) {
+         executor.drain(executor.workers.shutdownNow());
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Return a new lane for a panel's tasks; the name is used for the threads running them
+    */
+   public Lane newLane(String name) {
+      return new Lane(name);
+   }
+
+   /**
+    * Run a task straight away, outside any lane
+    */
+   public void executeNow(final Runnable task, final String name) {
+      final long submitted = System.nanoTime();
+      urgent.execute(new Runnable() {
+         @Override
+         public void run() {
+            runTask(task, name, submitted);
+         }
+      });
+   }
+
+   /**
+    * Return a short description of the task threads for the status bar tooltip
+    */
+   public String getDescription() {
+      return "tasks: " + active.get() + " running, " + queued.get() + " queued on " + lanes.get() + " lanes"
+            + " (max " + MAX_THREADS + (virtual ? " virtual" : "") + " threads)"
+            + "\ntask queue wait: " + queueWait
+            + "\ntask time: " + taskTime;
+   }
+
+   //
+   // OVERRIDES
+   //
+   @Override
+   public boolean isVirtualThreads() {
+      return virtual;
+   }
+
+   @Override
+   public int getMaxThreads() {
+      return MAX_THREADS;
+   }
+
+   @Override
+   public int getActiveTasks() {
+      return active.get();
+   }
+
+   @Override
+   public int getQueuedTasks() {
+      return queued.get();
+   }
+
+   @Override
+   public int getLanes() {
+      return lanes.get();
+   }
+
+   @Override
+   public long getTaskCount() {
+      return taskTime.getCount();
+   }
+
+   @Override
+   public double getQueueWaitMean() {
+      return queueWait.getMean();
+   }
+
+   @Override
+   public double getQueueWait95th() {
+      return queueWait.getPercentile(95);
+   }
+
+   @Override
+   public double getQueueWaitMax() {
+      return queueWait.getMax();
+   }
+
+   @Override
+   public double getTaskTimeMean() {
+      return taskTime.getMean();
+   }
+
+   @Override
+   public double getTaskTime95th() {
+      return taskTime.getPercentile(95);
+   }
+
+   @Override
+   public double getTaskTimeMax() {
+      return taskTime.getMax();
+   }
+
+   @Override
+   public void reset() {
+      queueWait.reset();
+      taskTime.reset();
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Create an executor which starts a virtual thread per task if the jvm supports them (java 21+);
+    * looked up reflectively so the plugin still builds and runs on older jvms
+    */
+   private static ExecutorService newVirtualThreadExecutor() {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   /**
+    * Run the lanes which were waiting for a thread when the executor was stopped, each on a thread of
+    * its own so a slow one can't hold up the others or the caller
+    */
+   private void drain(List<Runnable> waiting) {
+      ThreadFactory threads = ConnectionPool.daemonThreads("SQLPanel.drain");
+      for (Runnable runnable : waiting) {
+         threads.newThread(runnable).start();
+      }
+   }
+
+   /**
+    * Run a task under the given thread name, recording how long it waited and ran
+    */
+   private void runTask(Runnable task, String name, long submitted) {
+      long start = System.nanoTime();
+      queueWait.record(start - submitted);
+      Thread thread = Thread.currentThread();
+      String threadName = thread.getName();
+      thread.setName(name);
+      active.incrementAndGet();
+      try {
+         task.run();
+      } catch (RuntimeException e) {
+         System.err.println(getClass() + ".runTask(): " + name + ": " + e);
+      } finally {
+         active.decrementAndGet();
+         thread.setName(threadName);
+         taskTime.recordSince(start);
+      }
+   }
+
+   /**
+    * A series of tasks which run one after another, each on whichever shared thread is free.  Only
+    * the lane's next task is handed to the shared threads, so one busy panel can't starve the others
+    */
+   public class Lane {
+
+      private final String name;
+      private final Queue<Task> tasks = new ArrayDeque<Task>();
+      private boolean running;
+
+      private Lane(String name) {
+         this.name = name;
+         lanes.incrementAndGet();
+      }
+
+      /**
+       * Queue a task to run after the lane's earlier tasks; throws RejectedExecutionException if the
+       * executor has been shut down, so the caller can take a lane from the new one
+       */
+      public void execute(Runnable task, String action) {
+         if (isShutdown()) throw new RejectedExecutionException("Task executor has been shut down; " + name + "." + action + " not run");
+         synchronized (this) {
+            tasks.add(new Task(task, name + "." + action));
+            queued.incrementAndGet();
+            if (running) return;
+            running = true;
+         }
+         schedule();
+      }
+
+      /**
+       * Whether a task is running or waiting in this lane
+       */
+      public synchronized boolean isBusy() {
+         return running;
+      }
+
+      /**
+       * Whether the executor this lane belongs to has been shut down
+       */
+      public boolean isShutdown() {
+         return workers.isShutdown();
+      }
+
+      /**
+       * Stop counting the lane once its panel is gone; tasks already queued still run
+       */
+      public void release() {
+         lanes.decrementAndGet();
+      }
+
+      private void schedule() {
+         try {
+            workers.execute(new Runnable() {
+               @Override
+               public void run() {
+                  runNext();
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            // Shut down; run what's left here rather than drop it
+            runRemaining();
+         }
+      }
+
+      private void runRemaining() {
+         while (true) {
+            Task task;
+            synchronized (this) {
+               task = tasks.poll();
+               if (task == null) {
+                  running = false;
+                  return;
+               }
+            }
+            queued.decrementAndGet();
+            runTask(task.runnable, task.name, task.submitted);
+         }
+      }
+
+      private void runNext() {
+         Task task;
+         synchronized (this) {
+            task = tasks.poll();
+         }
+         if (task == null) return;
+         queued.decrementAndGet();
+         boolean acquired = false;
+         boolean interrupted = false;
+         try {
+            if (virtual) {
+               try {
+                  permits.acquire();
+                  acquired = true;
+               } catch (InterruptedException e) {
+                  // Shutting down; still run the task, it may be a close
+                  interrupted = true;
+               }
+            }
+            runTask(task.runnable, task.name, task.submitted);
+         } finally {
+            if (acquired) permits.release();
+            boolean more;
+            synchronized (this) {
+               more = !tasks.isEmpty();
+               running = more;
+            }
+            if (more) schedule();
+            if (interrupted) Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * A task waiting in a lane
+    */
+   private static class Task {
+
+      final Runnable runnable;
+      final String name;
+      final long submitted = System.nanoTime();
+
+      Task(Runnable runnable, String name) {
+         this.runnable = runnable;
+         this.name = name;
+      }
+   }
+}
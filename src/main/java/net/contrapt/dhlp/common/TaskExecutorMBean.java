@@ -0,0 +1,23 @@
+package net.contrapt.dhlp.common;
+
+/**
+ * JMX view of the threads which run sql panel tasks; times are in milliseconds
+ */
+public interface TaskExecutorMBean {
+
+   public boolean isVirtualThreads();
+   public int getMaxThreads();
+   public int getActiveTasks();
+   public int getQueuedTasks();
+   public int getLanes();
+
+   public long getTaskCount();
+   public double getQueueWaitMean();
+   public double getQueueWait95th();
+   public double getQueueWaitMax();
+   public double getTaskTimeMean();
+   public double getTaskTime95th();
+   public double getTaskTimeMax();
+
+   public void reset();
+}
@@ -0,0 +1,116 @@
+package net.contrapt.dhlp.gui;
+
+/**
+ * Chooses the jdbc fetch size for a result set.  The first guess is based on how wide the rows are,
+ * then the size is doubled while fetching as long as that brings rows back faster: on a slow link
+ * each round trip costs the same however many rows it carries, so fewer, bigger round trips win.
+ * Only time spent waiting on the driver counts, and a slow round trip alone is never a reason to
+ * fetch fewer rows
+ */
+public class AdaptiveFetchSize {
+
+   //
+   // PROPERTIES
+   //
+   private static final int MIN_FETCH_SIZE = 50;
+   private static final int MAX_FETCH_SIZE = 10000;
+   // Aim to bring back about this many bytes per round trip
+   private static final int TARGET_BYTES = 256 * 1024;
+   // Lobs and unbounded columns report huge display sizes; count them as this wide
+   private static final int MAX_COLUMN_WIDTH = 4000;
+   // Never bring back more than this many bytes per round trip
+   private static final int MAX_BYTES = 4 * 1024 * 1024;
+   // A bigger fetch size is kept only if it fetches rows at least this much faster
+   private static final double MIN_GAIN = 0.1;
+
+   private int fetchSize;
+   private int maxSize;
+   private int batchRows;
+   private long batchNanos;
+   // Rows per nanosecond at the last size which was an improvement, and that size
+   private double bestRate;
+   private int bestSize;
+   // The batch after a change was partly fetched at the old size so isn't measured
+   private boolean changed;
+   private boolean settled;
+
+   //
+   // CONSTRUCTORS
+   //
+   public AdaptiveFetchSize(int fetchSize, ColumnDescriptor[] columns) {
+      this.fetchSize = clamp(fetchSize);
+      this.maxSize = Math.max(this.fetchSize, clamp((int) Math.min(MAX_FETCH_SIZE, MAX_BYTES / rowWidth(columns))));
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Guess a fetch size from the width of the rows, no bigger than the limit if there is one
+    */
+   public static int initialSize(ColumnDescriptor[] columns, int limit) {
+      int size = clamp((int) Math.min(MAX_FETCH_SIZE, TARGET_BYTES / rowWidth(columns)));
+      return (limit > 0) ? Math.min(size, limit) : size;
+   }
+
+   public int getFetchSize() {
+      return fetchSize;
+   }
+
+   /**
+    * Start measuring the first batch of rows
+    */
+   public void start() {
+      batchRows = 0;
+      batchNanos = 0;
+   }
+
+   /**
+    * Count a fetched row and the time spent in the driver fetching it; returns true if the fetch size
+    * was changed at the end of a batch
+    */
+   public boolean rowFetched(long fetchNanos) {
+      batchNanos += fetchNanos;
+      if (++batchRows < fetchSize) return false;
+      double rate = batchRows / (double) Math.max(1, batchNanos);
+      start();
+      if (settled) return false;
+      if (changed) {
+         changed = false;
+         return false;
+      }
+      int previous = fetchSize;
+      if (bestRate == 0 || rate > bestRate * (1 + MIN_GAIN)) {
+         bestRate = rate;
+         bestSize = fetchSize;
+         fetchSize = Math.min(maxSize, clamp(fetchSize * 2));
+         settled = fetchSize == previous;
+      } else {
+         // Bigger round trips didn't help; stay at the best size seen
+         fetchSize = (rate < bestRate) ? bestSize : fetchSize;
+         settled = true;
+      }
+      changed = fetchSize != previous;
+      return changed;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+   /**
+    * Estimate the bytes in a row from the display sizes of its columns
+    */
+   private static long rowWidth(ColumnDescriptor[] columns) {
+      long width = 0;
+      for (ColumnDescriptor column : columns) {
+         int size = column.getDisplaySize();
+         width += (size <= 0 || size > MAX_COLUMN_WIDTH) ? MAX_COLUMN_WIDTH : size;
+      }
+      return Math.max(1, width);
+   }
+
+   private static int clamp(int size) {
+      return Math.max(MIN_FETCH_SIZE, Math.min(MAX_FETCH_SIZE, size));
+   }
+}
@@ -0,0 +1,87 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.Benchmark;
+import net.contrapt.dhlp.common.ConnectionPool;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import javax.swing.*;
+
+/**
+ * Asks how to benchmark a statement: how many runs, on how many connections at once, how many warm-up
+ * runs and, for a statement with parameters, the sets of values to use.  The entries are remembered
+ * for next time
+ */
+public class BenchmarkDialog {
+
+   //
+   // PROPERTIES
+   //
+   private static int iterations = 100;
+   private static int concurrency = 4;
+   private static int warmup = 10;
+   private static String parameterSets = "";
+
+   //
+   // CONSTRUCTORS
+   //
+   private BenchmarkDialog() {
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Show the dialog and return the benchmark to run, or null if cancelled.  Runs on the event thread
+    */
+   public static Benchmark prompt(Component parent, ConnectionPool pool, String sql) {
+      Benchmark benchmark = new Benchmark(pool, sql, iterations, concurrency, warmup);
+      JPanel form = new JPanel(new GridBagLayout());
+      GridBagConstraints constraints = new GridBagConstraints();
+      constraints.insets = new Insets(2, 4, 2, 4);
+      constraints.anchor = GridBagConstraints.WEST;
+      JSpinner iterationField = addSpinner(form, constraints, 0, "Runs", iterations, 1, 1000000);
+      JSpinner concurrencyField = addSpinner(form, constraints, 1, "Connections (up to " + pool.getMaxConnections() + ")", concurrency, 1, pool.getMaxConnections());
+      JSpinner warmupField = addSpinner(form, constraints, 2, "Warm-up runs", warmup, 0, 1000000);
+      JTextArea parameterField = new JTextArea(parameterSets, 8, 40);
+      if (benchmark.hasParameters()) {
+         JPanel parameters = new JPanel(new BorderLayout());
+         parameters.add(new JLabel("Parameter values, one set per line separated by commas or tabs"), BorderLayout.NORTH);
+         parameters.add(new JScrollPane(parameterField), BorderLayout.CENTER);
+         constraints.gridy = 3;
+         constraints.gridx = 0;
+         constraints.gridwidth = 2;
+         constraints.fill = GridBagConstraints.BOTH;
+         form.add(parameters, constraints);
+      }
+      int choice = JOptionPane.showConfirmDialog(parent, form, "Benchmark Statement", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+      if (choice != JOptionPane.OK_OPTION) return null;
+      iterations = (Integer) iterationField.getValue();
+      concurrency = (Integer) concurrencyField.getValue();
+      warmup = (Integer) warmupField.getValue();
+      benchmark = new Benchmark(pool, sql, iterations, concurrency, warmup);
+      if (benchmark.hasParameters()) {
+         parameterSets = parameterField.getText();
+         benchmark.setParameterSets(parameterSets);
+      }
+      return benchmark;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private static JSpinner addSpinner(JPanel form, GridBagConstraints constraints, int row, String label, int value, int min, int max) {
+      constraints.gridy = row;
+      constraints.gridx = 0;
+      form.add(new JLabel(label), constraints);
+      constraints.gridx = 1;
+      JSpinner spinner = new JSpinner(new SpinnerNumberModel(Math.max(min, Math.min(value, max)), min, max, 1));
+      form.add(spinner, constraints);
+      return spinner;
+   }
+}
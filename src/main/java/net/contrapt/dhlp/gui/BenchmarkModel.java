@@ -0,0 +1,187 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.Benchmark;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+import javax.swing.*;
+
+/**
+ * Run a statement many times at once to measure its latency, showing progress while it runs and then
+ * the latency distribution
+ */
+public class BenchmarkModel implements SQLModel {
+
+   //
+   // PROPERTIES
+   //
+   // How often the progress is refreshed while running
+   private static final int REFRESH_MILLIS = 500;
+   private static final String[] SAMPLE_COLUMNS = {"run", "worker", "start_ms", "latency_ms"};
+
+   private Benchmark benchmark;
+   private JTextArea text;
+   private Timer timer;
+   private volatile boolean finished;
+
+   //
+   // CONSTRUCTORS
+   //
+   public BenchmarkModel(Benchmark benchmark) {
+      this.benchmark = benchmark;
+      text = new JTextArea();
+      text.setEditable(false);
+      text.setFont(new java.awt.Font("Monospaced", java.awt.Font.PLAIN, text.getFont().getSize()));
+      text.setText(getOperation());
+      timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+         public void actionPerformed(ActionEvent e) {
+            showProgress();
+         }
+      });
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   public JComponent getComponent() {
+      return text;
+   }
+
+   /**
+    * Run the benchmark, refreshing the progress until it finishes and then showing the report
+    */
+   public void execute(boolean limited) {
+      finished = false;
+      timer.start();
+      try {
+         benchmark.run();
+      } finally {
+         finished = true;
+         timer.stop();
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               showProgress();
+            }
+         });
+      }
+   }
+
+   public void fetch(boolean limited) {
+      // Every run is done by execute
+   }
+
+   public boolean hasMore() {
+      return false;
+   }
+
+   public void cancel() {
+      benchmark.cancel();
+   }
+
+   public void close() {
+      benchmark.cancel();
+      timer.stop();
+   }
+
+   public void commit() {
+      // Each run uses its own pooled connection; the pool decides how they commit
+   }
+
+   public void rollback() {
+      // Each run uses its own pooled connection; the pool decides how they commit
+   }
+
+   /**
+    * Export the report
+    */
+   public void export(BufferedWriter out) {
+      try {
+         out.write(benchmark.getReport());
+         out.newLine();
+      } catch (IOException e) {
+         throw new RuntimeException("Error exporting benchmark report", e);
+      }
+   }
+
+   /**
+    * Export every measured run with its worker, start and latency, for analysis elsewhere
+    */
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      Writer out = null;
+      try {
+         OutputStream stream = new FileOutputStream(file);
+         if (gzip) stream = new GZIPOutputStream(stream);
+         out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+         String separator = (format == ResultExporter.Format.TSV) ? "\t" : ",";
+         String lineEnd = (format == ResultExporter.Format.CSV) ? "\r\n" : "\n";
+         if (format != ResultExporter.Format.JSON_LINES) {
+            for (int i = 0; i < SAMPLE_COLUMNS.length; i++) {
+               out.write((i > 0 ? separator : "") + SAMPLE_COLUMNS[i]);
+            }
+            out.write(lineEnd);
+         }
+         long count = 0;
+         for (long[] sample : benchmark.getSamples()) {
+            String[] values = {String.valueOf(sample[0]), String.valueOf(sample[1]), millis(sample[2]), (sample[3] < 0) ? null : millis(sample[3])};
+            for (int i = 0; i < values.length; i++) {
+               if (format == ResultExporter.Format.JSON_LINES) {
+                  out.write((i > 0 ? "," : "{") + "\"" + SAMPLE_COLUMNS[i] + "\":" + (values[i] == null ? "null" : values[i]));
+               } else {
+                  out.write((i > 0 ? separator : "") + (values[i] == null ? "" : values[i]));
+               }
+            }
+            out.write((format == ResultExporter.Format.JSON_LINES) ? "}\n" : lineEnd);
+            count++;
+         }
+         out.close();
+         out = null;
+         return count;
+      } catch (IOException e) {
+         throw new IllegalStateException("Error exporting benchmark runs to " + file, e);
+      } finally {
+         try {
+            if (out != null) out.close();
+         } catch (IOException e) {
+            System.err.println(getClass() + ".export(): " + e);
+         }
+      }
+   }
+
+   public int getRowCount() {
+      return benchmark.getSamples().size();
+   }
+
+   public String getAction() {
+      return benchmark.getProgress();
+   }
+
+   public String getOperation() {
+      return "Benchmark " + benchmark.getIterations() + " runs on " + benchmark.getConcurrency() + " connections\n" + benchmark.getSql();
+   }
+
+   public String getSql() {
+      return benchmark.getSql();
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private void showProgress() {
+      text.setText(finished ? benchmark.getReport() : getOperation() + "\n" + benchmark.getProgress());
+      text.setCaretPosition(0);
+   }
+
+   private static String millis(long nanos) {
+      return String.format("%.3f", nanos / 1e6);
+   }
+}
@@ -0,0 +1,29 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.Benchmark;
+
+import javax.swing.*;
+
+/**
+* A panel which runs a statement repeatedly at once on several connections and shows its latencies
+*/
+public class BenchmarkPanel extends SQLPanel {
+   
+   private BenchmarkModel model;
+   
+   public BenchmarkPanel(Benchmark benchmark) {
+      model = new BenchmarkModel(benchmark);
+      initialize();
+   }
+
+   @Override
+   public SQLModel getModel() {
+      return model;
+   }
+
+   @Override
+   public JComponent getComponent() {
+      return model.getComponent();
+   }
+   
+}
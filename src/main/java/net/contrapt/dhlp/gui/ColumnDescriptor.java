@@ -0,0 +1,213 @@
+package net.contrapt.dhlp.gui;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * What the result table needs to know about a column, read once from the result set meta data, along
+ * with the converter which fetches its values using the getter for its type
+ */
+public class ColumnDescriptor {
+
+   //
+   // PROPERTIES
+   //
+   private final String name;
+   private final String label;
+   private final int type;
+   private final String className;
+   private final Class columnClass;
+   private final int displaySize;
+   private final int precision;
+   private final int scale;
+   private final Converter converter;
+
+   //
+   // CONSTRUCTORS
+   //
+   private ColumnDescriptor(ResultSetMetaData meta, int column) throws SQLException {
+      name = meta.getColumnName(column);
+      label = meta.getColumnLabel(column);
+      type = meta.getColumnType(column);
+      className = meta.getColumnClassName(column);
+      displaySize = meta.getColumnDisplaySize(column);
+      precision = meta.getPrecision(column);
+      scale = meta.getScale(column);
+      columnClass = columnClass(type, className);
+      converter = converter(type, className);
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Describe each column of a result set
+    */
+   public static ColumnDescriptor[] describe(ResultSetMetaData meta) throws SQLException {
+      ColumnDescriptor[] columns = new ColumnDescriptor[meta.getColumnCount()];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new ColumnDescriptor(meta, i + 1);
+      }
+      return columns;
+   }
+
+   /**
+    * Fetch the value of this column from the current row
+    */
+   public Object read(ResultSet row, int column) throws SQLException {
+      return converter.read(row, column);
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public String getLabel() {
+      return (label == null) ? name : label;
+   }
+
+   public int getType() {
+      return type;
+   }
+
+   public String getClassName() {
+      return className;
+   }
+
+   /**
+    * The class of the values shown in the table; dates are shown formatted
+    */
+   public Class getColumnClass() {
+      return columnClass;
+   }
+
+   public int getDisplaySize() {
+      return displaySize;
+   }
+
+   public int getPrecision() {
+      return precision;
+   }
+
+   public int getScale() {
+      return scale;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private static Class columnClass(int type, String className) {
+      switch (type) {
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIME:
+         case Types.OTHER:
+            return String.class;
+         default:
+            try {
+               return Class.forName(className);
+            } catch (Exception e) {
+               return String.class;
+            }
+      }
+   }
+
+   private static Converter converter(int type, String className) {
+      switch (type) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+            // Unsigned ints come back as longs from some drivers
+            return "java.lang.Long".equals(className) ? LONG : INT;
+         case Types.BIGINT:
+            // Unsigned bigints don't fit a long
+            return "java.math.BigInteger".equals(className) ? OBJECT : LONG;
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return DOUBLE;
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return DECIMAL;
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIME:
+            // Kept as a timestamp and formatted when displayed
+            return TIMESTAMP;
+         case Types.CHAR:
+         case Types.VARCHAR:
+         case Types.LONGVARCHAR:
+         case Types.NCHAR:
+         case Types.NVARCHAR:
+         case Types.LONGNVARCHAR:
+         case Types.BINARY:
+         case Types.VARBINARY:
+         case Types.LONGVARBINARY:
+         case Types.BLOB:
+         case Types.CLOB:
+         case Types.OTHER:
+            return STRING;
+         default:
+            return OBJECT;
+      }
+   }
+
+   //
+   // CONVERTERS
+   //
+
+   /**
+    * Reads a column value with a particular getter
+    */
+   private interface Converter {
+      Object read(ResultSet row, int column) throws SQLException;
+   }
+
+   private static final Converter INT = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         int value = row.getInt(column);
+         return row.wasNull() ? null : Integer.valueOf(value);
+      }
+   };
+
+   private static final Converter LONG = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         long value = row.getLong(column);
+         return row.wasNull() ? null : Long.valueOf(value);
+      }
+   };
+
+   private static final Converter DOUBLE = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         double value = row.getDouble(column);
+         return row.wasNull() ? null : Double.valueOf(value);
+      }
+   };
+
+   private static final Converter DECIMAL = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         return row.getBigDecimal(column);
+      }
+   };
+
+   private static final Converter TIMESTAMP = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         return row.getTimestamp(column);
+      }
+   };
+
+   private static final Converter STRING = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         return row.getString(column);
+      }
+   };
+
+   private static final Converter OBJECT = new Converter() {
+      public Object read(ResultSet row, int column) throws SQLException {
+         return row.getObject(column);
+      }
+   };
+}
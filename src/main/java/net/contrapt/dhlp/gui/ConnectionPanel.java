@@ -56,6 +56,42 @@ public class ConnectionPanel extends PluginPanel {
       }
    }
 
+   /**
+   * Add a sql script tab
+   */
+   public void addScript(String sql) {
+      ScriptPanel panel = new ScriptPanel(pool, sql);
+      executionPanel.addTab("Script"+(++statementCount), panel);
+      executionPanel.setSelectedComponent(panel);
+   }
+
+   /**
+   * Add a tab showing how the statements run on this connection have performed
+   */
+   public void addHistory() {
+      HistoryPanel panel = new HistoryPanel(pool);
+      executionPanel.addTab("History"+(++statementCount), panel);
+      executionPanel.setSelectedComponent(panel);
+   }
+
+   /**
+   * Add a tab which runs a statement repeatedly to measure its latency
+   */
+   public void addBenchmark(Benchmark benchmark) {
+      BenchmarkPanel panel = new BenchmarkPanel(benchmark);
+      executionPanel.addTab("Benchmark"+(++statementCount), panel);
+      executionPanel.setSelectedComponent(panel);
+   }
+
+   /**
+   * Add a tab which imports a csv file into a table
+   */
+   public void addImport(CsvImporter importer) {
+      ImportPanel panel = new ImportPanel(importer);
+      executionPanel.addTab("Import"+(++statementCount), panel);
+      executionPanel.setSelectedComponent(panel);
+   }
+
    /**
    * Add an object description tab
    */
@@ -85,9 +121,12 @@ public class ConnectionPanel extends PluginPanel {
    }
    
    /**
-   * Fetch more rows from the current sql statement
+   * Fetch the next rows from the current sql statement
    */
    public void fetch() {
+      SQLPanel panel = (SQLPanel)executionPanel.getSelectedComponent();
+      if ( panel == null ) return;
+      panel.fetch();
    }
    
    /**
@@ -135,6 +174,15 @@ public class ConnectionPanel extends PluginPanel {
       panel.export();
    }
    
+   /**
+    * Export all the query rows straight to a file
+    */
+   public void exportFile() {
+      SQLPanel panel = (SQLPanel)executionPanel.getSelectedComponent();
+      if ( panel == null ) return;
+      panel.exportFile();
+   }
+   
    /**
    * Close all statement panels
    */
@@ -165,8 +213,10 @@ public class ConnectionPanel extends PluginPanel {
       toolBar.setRollover(true);
       toolBar.addSeparator();
       (toolBar.add(ExportAction)).setMnemonic(KeyEvent.VK_E);
+      (toolBar.add(ExportFileAction)).setMnemonic(KeyEvent.VK_F);
       toolBar.addSeparator();
       (toolBar.add(ExecuteAction)).setMnemonic(KeyEvent.VK_X);
+      (toolBar.add(FetchAction)).setMnemonic(KeyEvent.VK_N);
       (toolBar.add(CommitAction)).setMnemonic(KeyEvent.VK_T);
       (toolBar.add(RollbackAction)).setMnemonic(KeyEvent.VK_R);
       (toolBar.add(CancelAction)).setMnemonic(KeyEvent.VK_C);
@@ -263,6 +313,12 @@ public class ConnectionPanel extends PluginPanel {
       }
    };
 
+   private Action FetchAction = new AbstractAction("Fetch Next") {
+      public void actionPerformed(ActionEvent e) {
+         fetch();
+      }
+   };
+
    private Action CommitAction = new AbstractAction("Commit") {
       public void actionPerformed(ActionEvent e) {
          commit();
@@ -281,4 +337,10 @@ public class ConnectionPanel extends PluginPanel {
       }
    };
 
+   private Action ExportFileAction = new AbstractAction("Export File") {
+      public void actionPerformed(ActionEvent e) {
+         exportFile();
+      }
+   };
+
 }
@@ -2,6 +2,7 @@ package net.contrapt.dhlp.gui;
 
 import javax.swing.tree.*;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.sql.*;
 import javax.swing.*;
 import javax.swing.event.TreeWillExpandListener;
@@ -31,7 +32,7 @@ public class DescriptionTreeModel extends DefaultTreeModel implements SQLModel,
    /**
     * Excecute the sql statement for this table model
     */
-   public void execute() {
+   public void execute(boolean limited) {
       if (object == null) return;
       describe();
    }
@@ -43,6 +44,10 @@ public class DescriptionTreeModel extends DefaultTreeModel implements SQLModel,
       // This is a no-op
    }
 
+   public boolean hasMore() {
+      return false;
+   }
+
    /**
     * Cancel the current statement if possible
     */
@@ -66,6 +71,10 @@ public class DescriptionTreeModel extends DefaultTreeModel implements SQLModel,
    public void export(BufferedWriter out) {
    }
 
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      return 0;
+   }
+
    /**
     * Close resources used by this model
     */
@@ -0,0 +1,29 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.ConnectionPool;
+
+import javax.swing.*;
+
+/**
+* A panel which shows the query history of a connection
+*/
+public class HistoryPanel extends SQLPanel {
+   
+   private HistoryTableModel model;
+   
+   public HistoryPanel(ConnectionPool pool) {
+      model = new HistoryTableModel(pool);
+      initialize();
+   }
+
+   @Override
+   public SQLModel getModel() {
+      return model;
+   }
+
+   @Override
+   public JComponent getComponent() {
+      return model.getTable();
+   }
+   
+}
@@ -0,0 +1,181 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.ConnectionPool;
+import net.contrapt.dhlp.common.QueryHistory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Shows how the statements run on a connection have performed day by day, from the query history,
+ * so a query which has become slower stands out
+ */
+public class HistoryTableModel extends AbstractTableModel implements SQLModel {
+
+   //
+   // PROPERTIES
+   //
+   private static final String[] COLUMNS = {"Statement", "Day", "Runs", "Exec p50 (ms)", "Exec p95 (ms)", "First Row p50 (ms)", "Total p50 (ms)", "Total p95 (ms)", "Avg Rows"};
+
+   private ConnectionPool pool;
+   // Replaced on the event thread when the history is loaded
+   private List<QueryHistory.Summary> summaries = Collections.emptyList();
+   private SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+   private JTable table;
+
+   //
+   // CONSTRUCTORS
+   //
+   public HistoryTableModel(ConnectionPool pool) {
+      this.pool = pool;
+      table = new JTable(this);
+      table.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+      table.getColumnModel().getColumn(0).setPreferredWidth(500);
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   public JTable getTable() {
+      return table;
+   }
+
+   /**
+    * Load the history for the connection
+    */
+   public void execute(boolean limited) {
+      final List<QueryHistory.Summary> loaded = QueryHistory.getInstance().summarize(pool.getName());
+      try {
+         SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+               summaries = loaded;
+               fireTableDataChanged();
+            }
+         });
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (InvocationTargetException e) {
+         throw new IllegalStateException("Error showing query history", e.getCause());
+      }
+   }
+
+   public void fetch(boolean limited) {
+      // Everything is loaded by execute
+   }
+
+   public boolean hasMore() {
+      return false;
+   }
+
+   public void cancel() {
+   }
+
+   public void close() {
+   }
+
+   public void commit() {
+   }
+
+   public void rollback() {
+   }
+
+   /**
+    * Export the history as tab separated values
+    */
+   public void export(BufferedWriter out) {
+      try {
+         for (int i = 0; i < COLUMNS.length; i++) {
+            out.write((i == 0 ? "" : "\t") + COLUMNS[i]);
+         }
+         out.newLine();
+         for (int row = 0; row < getRowCount(); row++) {
+            for (int column = 0; column < COLUMNS.length; column++) {
+               Object value = getValueAt(row, column);
+               out.write((column == 0 ? "" : "\t") + (value == null ? "" : value));
+            }
+            out.newLine();
+         }
+      } catch (IOException e) {
+         throw new RuntimeException("Error exporting row", e);
+      }
+   }
+
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      return 0;
+   }
+
+   public String getAction() {
+      return summaries.size() + " statement days of history";
+   }
+
+   public String getOperation() {
+      return "Query history for " + pool.getName();
+   }
+
+   public String getSql() {
+      return null;
+   }
+
+   //
+   // OVERRIDES
+   //
+
+   public int getRowCount() {
+      return summaries.size();
+   }
+
+   public int getColumnCount() {
+      return COLUMNS.length;
+   }
+
+   @Override
+   public String getColumnName(int column) {
+      return COLUMNS[column];
+   }
+
+   public Object getValueAt(int row, int column) {
+      if (row >= summaries.size()) return null;
+      QueryHistory.Summary summary = summaries.get(row);
+      switch (column) {
+         case 0:
+            return summary.getFingerprint();
+         case 1:
+            return dayFormat.format(new Date(summary.getDay()));
+         case 2:
+            return summary.getRuns();
+         case 3:
+            return millis(summary.getExecuteMedian());
+         case 4:
+            return millis(summary.getExecute95th());
+         case 5:
+            return millis(summary.getFirstRowMedian());
+         case 6:
+            return millis(summary.getTotalMedian());
+         case 7:
+            return millis(summary.getTotal95th());
+         default:
+            return summary.getAverageRows();
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Show times to a tenth of a millisecond; unknown times are left blank
+    */
+   private String millis(double value) {
+      return (value < 0) ? null : String.format("%.1f", value);
+   }
+}
@@ -0,0 +1,130 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.CsvImporter;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import javax.swing.*;
+
+/**
+ * Load a csv file into a table, showing the import's progress while it runs
+ */
+public class ImportModel implements SQLModel {
+
+   //
+   // PROPERTIES
+   //
+   // How often the progress is refreshed while loading
+   private static final int REFRESH_MILLIS = 500;
+
+   private CsvImporter importer;
+   private JTextArea text;
+   private Timer timer;
+
+   //
+   // CONSTRUCTORS
+   //
+   public ImportModel(CsvImporter importer) {
+      this.importer = importer;
+      text = new JTextArea();
+      text.setEditable(false);
+      text.setText(getOperation());
+      timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+         public void actionPerformed(ActionEvent e) {
+            showProgress();
+         }
+      });
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   public JComponent getComponent() {
+      return text;
+   }
+
+   /**
+    * Run the import, refreshing the progress until it finishes
+    */
+   public void execute(boolean limited) {
+      timer.start();
+      try {
+         importer.run();
+      } finally {
+         timer.stop();
+         SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+               showProgress();
+            }
+         });
+      }
+   }
+
+   public void fetch(boolean limited) {
+      // The whole file is loaded by execute
+   }
+
+   public boolean hasMore() {
+      return false;
+   }
+
+   public void cancel() {
+      importer.cancel();
+   }
+
+   public void close() {
+      importer.cancel();
+      timer.stop();
+   }
+
+   public void commit() {
+      // Each loader commits its own batches
+   }
+
+   public void rollback() {
+      // Uncommitted batches are rolled back when the import fails or is cancelled
+   }
+
+   public void export(BufferedWriter out) {
+      try {
+         out.write(getOperation());
+         out.newLine();
+         out.write(importer.getProgress());
+         out.newLine();
+      } catch (IOException e) {
+         throw new RuntimeException("Error exporting import progress", e);
+      }
+   }
+
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      return 0;
+   }
+
+   public int getRowCount() {
+      return (int) Math.min(Integer.MAX_VALUE, importer.getCommitted());
+   }
+
+   public String getAction() {
+      return importer.getProgress();
+   }
+
+   public String getOperation() {
+      return "Import " + importer.getFile() + " into " + importer.getTable().getName();
+   }
+
+   public String getSql() {
+      return null;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private void showProgress() {
+      text.setText(getOperation() + "\n" + importer.getProgress());
+   }
+}
@@ -0,0 +1,29 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.CsvImporter;
+
+import javax.swing.*;
+
+/**
+* A panel which loads a csv file into a table and shows how far it has got
+*/
+public class ImportPanel extends SQLPanel {
+   
+   private ImportModel model;
+   
+   public ImportPanel(CsvImporter importer) {
+      model = new ImportModel(importer);
+      initialize();
+   }
+
+   @Override
+   public SQLModel getModel() {
+      return model;
+   }
+
+   @Override
+   public JComponent getComponent() {
+      return model.getComponent();
+   }
+   
+}
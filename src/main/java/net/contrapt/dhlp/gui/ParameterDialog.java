@@ -0,0 +1,62 @@
+package net.contrapt.dhlp.gui;
+
+import java.awt.Component;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.util.List;
+import java.util.Map;
+import javax.swing.*;
+
+/**
+ * Asks for the values of a statement's bind parameters, starting from the values entered last time
+ */
+public class ParameterDialog {
+
+   //
+   // PROPERTIES
+   //
+   private static final int FIELD_WIDTH = 30;
+
+   //
+   // CONSTRUCTORS
+   //
+   private ParameterDialog() {
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Show the dialog and return the text entered for each name, or null if cancelled; the entries are
+    * remembered in the map of previous values.  Runs on the event thread
+    */
+   public static String[] prompt(Component parent, List<String> names, String[] typeNames, Map<String, String> previous) {
+      JPanel form = new JPanel(new GridBagLayout());
+      GridBagConstraints constraints = new GridBagConstraints();
+      constraints.insets = new Insets(2, 4, 2, 4);
+      constraints.anchor = GridBagConstraints.WEST;
+      JTextField[] fields = new JTextField[names.size()];
+      for (int i = 0; i < fields.length; i++) {
+         String name = names.get(i);
+         constraints.gridy = i;
+         constraints.gridx = 0;
+         form.add(new JLabel(name), constraints);
+         constraints.gridx = 1;
+         form.add(new JLabel((typeNames[i] == null) ? "" : typeNames[i]), constraints);
+         constraints.gridx = 2;
+         fields[i] = new JTextField(previous.get(name), FIELD_WIDTH);
+         fields[i].setToolTipText("Leave empty for null");
+         form.add(fields[i], constraints);
+      }
+      int choice = JOptionPane.showConfirmDialog(parent, form, "Bind Parameters", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+      if (choice != JOptionPane.OK_OPTION) return null;
+      String[] texts = new String[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+         texts[i] = fields[i].getText();
+         previous.put(names.get(i), texts[i]);
+      }
+      return texts;
+   }
+}
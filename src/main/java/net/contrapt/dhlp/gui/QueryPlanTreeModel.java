@@ -4,6 +4,7 @@ import net.contrapt.dhlp.common.ConnectionPool;
 
 import javax.swing.tree.*;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.sql.*;
 import java.util.*;
 import javax.swing.*;
@@ -32,16 +33,18 @@ public class QueryPlanTreeModel extends DefaultTreeModel implements SQLModel {
    */
    public JTree getTree() { return tree; }
 
-   public void execute() {
+   public void execute(boolean limited) {
       explain();
    }
 
    public void fetch(boolean limited) {}
+   public boolean hasMore() { return false; }
    public void cancel() {}
    public void close() {}
    public void commit() {}
    public void rollback() {}
    public void export(BufferedWriter out) {}
+   public long export(File file, ResultExporter.Format format, boolean gzip) { return 0; }
 
    public int getRowCount() { return 1; }
    public String getAction() { return "query plan generated"; }
@@ -74,7 +77,7 @@ public class QueryPlanTreeModel extends DefaultTreeModel implements SQLModel {
          explain.executeUpdate();
          explain.close();
          // Get the plan results
-         PreparedStatement plan = db.prepareStatement(planString);
+         PreparedStatement plan = pool.prepareStatement(db, planString);
          ResultSet rows = plan.executeQuery();
          while ( rows.next() ) {
             int id = rows.getInt("ID");
@@ -93,7 +96,8 @@ public class QueryPlanTreeModel extends DefaultTreeModel implements SQLModel {
                parent.add(node);
             }
          }
-         plan.close();
+         rows.close();
+         pool.releaseStatement(db, plan);
       }
       catch (SQLException e) {
          throw new IllegalStateException("Error explain execution plan for "+sql);
@@ -0,0 +1,226 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.ConnectionPool;
+import net.contrapt.dhlp.common.SqlScript;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the complete results of read only queries for a connection for a short time, so running the
+ * same query again shows the same rows without a round trip.  Entries are keyed by the normalized sql
+ * and its parameters, expire after the connection's time to live and are dropped least recently used
+ * first to stay within its byte budget.  Anything which may change data on the connection makes every
+ * entry stale.  The cache is shared by every tab on the connection, so a tab whose own connection has
+ * uncommitted changes must not use it
+ */
+public class ResultCache {
+
+   //
+   // PROPERTIES
+   //
+   private static final Map<ConnectionPool, ResultCache> caches = new WeakHashMap<ConnectionPool, ResultCache>();
+
+   // One result may use at most this fraction of the budget
+   private static final int ENTRY_FRACTION = 4;
+
+   private ConnectionPool pool;
+   // Least recently used first
+   private LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+   private long bytes;
+   private long version;
+
+   //
+   // CONSTRUCTORS
+   //
+   private ResultCache(ConnectionPool pool) {
+      this.pool = pool;
+      this.version = pool.getDataVersion();
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Return the cache for the pool, or null if result caching is turned off for the connection
+    */
+   public static synchronized ResultCache forPool(ConnectionPool pool) {
+      if (pool == null || pool.getResultCacheMillis() <= 0 || pool.getResultCacheBytes() <= 0) return null;
+      ResultCache cache = caches.get(pool);
+      if (cache == null) {
+         cache = new ResultCache(pool);
+         caches.put(pool, cache);
+      }
+      return cache;
+   }
+
+   /**
+    * Whether results of the statement may be cached
+    */
+   public static boolean isCacheable(String sql) {
+      return SqlScript.isReadOnly(sql);
+   }
+
+   /**
+    * Return the cached result of the statement run with the given parameters, or null
+    */
+   public synchronized Entry get(String sql, List<?> parameters) {
+      checkVersion();
+      List<Object> key = key(sql, parameters);
+      Entry entry = entries.get(key);
+      if (entry == null) return null;
+      if (entry.getAge() > pool.getResultCacheMillis()) {
+         remove(key);
+         return null;
+      }
+      return entry;
+   }
+
+   /**
+    * Start collecting the rows of a result to cache; call before running the statement so a change made
+    * while it runs keeps its rows out of the cache
+    */
+   public Collector collect(String sql, List<?> parameters) {
+      return new Collector(key(sql, parameters), pool.getDataVersion(), pool.getResultCacheBytes() / ENTRY_FRACTION);
+   }
+
+   /**
+    * Drop all the entries
+    */
+   public synchronized void clear() {
+      entries.clear();
+      bytes = 0;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private static List<Object> key(String sql, List<?> parameters) {
+      return Arrays.<Object>asList(SqlScript.normalize(sql), parameters);
+   }
+
+   private synchronized void put(List<Object> key, Entry entry, long dataVersion) {
+      checkVersion();
+      if (dataVersion != version) return;
+      remove(key);
+      entries.put(key, entry);
+      bytes += entry.bytes;
+      long budget = pool.getResultCacheBytes();
+      Iterator<Entry> oldest = entries.values().iterator();
+      while (bytes > budget && oldest.hasNext()) {
+         bytes -= oldest.next().bytes;
+         oldest.remove();
+      }
+   }
+
+   private void remove(List<Object> key) {
+      Entry entry = entries.remove(key);
+      if (entry != null) bytes -= entry.bytes;
+   }
+
+   /**
+    * Drop everything if data may have changed since the entries were cached
+    */
+   private void checkVersion() {
+      long current = pool.getDataVersion();
+      if (current == version) return;
+      clear();
+      version = current;
+   }
+
+   /**
+    * A rough size of a row in memory
+    */
+   private static long estimate(Object[] row) {
+      long size = 16 + 8L * row.length;
+      for (Object value : row) {
+         if (value == null) continue;
+         if (value instanceof String) size += 40 + 2L * ((String) value).length();
+         else if (value instanceof byte[]) size += 16 + ((byte[]) value).length;
+         else if (value instanceof BigDecimal) size += 64;
+         else size += 32;
+      }
+      return size;
+   }
+
+   /**
+    * A complete result
+    */
+   public static class Entry {
+
+      private final ColumnDescriptor[] columns;
+      private final Object[][] rows;
+      private final long bytes;
+      private final long created = System.currentTimeMillis();
+
+      private Entry(ColumnDescriptor[] columns, Object[][] rows, long bytes) {
+         this.columns = columns;
+         this.rows = rows;
+         this.bytes = bytes;
+      }
+
+      public ColumnDescriptor[] getColumns() {
+         return columns;
+      }
+
+      /**
+       * The rows, which must not be changed
+       */
+      public Object[][] getRows() {
+         return rows;
+      }
+
+      /**
+       * Milliseconds since the result was cached
+       */
+      public long getAge() {
+         return System.currentTimeMillis() - created;
+      }
+   }
+
+   /**
+    * Gathers rows as they are fetched and caches them once the whole result has been read; a result
+    * too big for the cache is given up on
+    */
+   public class Collector {
+
+      private final List<Object> key;
+      private final long dataVersion;
+      private final long maxBytes;
+      private ArrayList<Object[]> rows = new ArrayList<Object[]>();
+      private long bytes;
+
+      private Collector(List<Object> key, long dataVersion, long maxBytes) {
+         this.key = key;
+         this.dataVersion = dataVersion;
+         this.maxBytes = maxBytes;
+      }
+
+      /**
+       * Add a fetched row, which must not be changed afterwards
+       */
+      public void add(Object[] row) {
+         if (rows == null) return;
+         bytes += estimate(row);
+         if (bytes > maxBytes) rows = null;
+         else rows.add(row);
+      }
+
+      /**
+       * Cache the rows; call once the last row has been fetched
+       */
+      public void finish(ColumnDescriptor[] columns) {
+         if (rows == null) return;
+         put(key, new Entry(columns, rows.toArray(new Object[rows.size()][]), bytes), dataVersion);
+         rows = null;
+      }
+   }
+}
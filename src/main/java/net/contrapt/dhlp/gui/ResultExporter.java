@@ -0,0 +1,245 @@
+package net.contrapt.dhlp.gui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes result rows to a file one at a time as csv (rfc 4180), tab separated values or json lines,
+ * optionally gzipped, so an export of any size runs in constant memory
+ */
+public class ResultExporter {
+
+   /**
+    * The supported file formats
+    */
+   public enum Format {
+      CSV, TSV, JSON_LINES;
+
+      /**
+       * Choose the format from a file name's extension, ignoring any .gz; csv is the default
+       */
+      public static Format forFile(File file) {
+         String name = file.getName().toLowerCase();
+         if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+         if (name.endsWith(".tsv") || name.endsWith(".tab") || name.endsWith(".txt")) return TSV;
+         if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) return JSON_LINES;
+         return CSV;
+      }
+   }
+
+   //
+   // PROPERTIES
+   //
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final String CSV_LINE_END = "\r\n";
+
+   private File file;
+   private Format format;
+   private ColumnDescriptor[] columns;
+   private Writer out;
+   private SimpleDateFormat dateFormat;
+   private long rows;
+
+   //
+   // CONSTRUCTORS
+   //
+   public ResultExporter(File file, Format format, boolean gzip, ColumnDescriptor[] columns, String datePattern) throws IOException {
+      this.file = file;
+      this.format = format;
+      this.columns = columns;
+      this.dateFormat = new SimpleDateFormat(datePattern);
+      FileChannel channel = new FileOutputStream(file).getChannel();
+      OutputStream stream = Channels.newOutputStream(channel);
+      if (gzip) stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+      out = new BufferedWriter(new OutputStreamWriter(stream, UTF8), BUFFER_SIZE);
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Whether the file name asks for gzip compression
+    */
+   public static boolean isGzip(File file) {
+      return file.getName().toLowerCase().endsWith(".gz");
+   }
+
+   /**
+    * Write the column names; json lines has no header
+    */
+   public void writeHeader() throws IOException {
+      if (format == Format.JSON_LINES) return;
+      for (int i = 0; i < columns.length; i++) {
+         if (i > 0) out.write(format == Format.CSV ? ',' : '\t');
+         writeText(columns[i].getLabel());
+      }
+      out.write(format == Format.CSV ? CSV_LINE_END : "\n");
+   }
+
+   /**
+    * Write a row of values, one for each column
+    */
+   public void writeRow(Object[] values) throws IOException {
+      if (format == Format.JSON_LINES) {
+         out.write('{');
+         for (int i = 0; i < columns.length; i++) {
+            if (i > 0) out.write(',');
+            writeJsonString(columns[i].getLabel());
+            out.write(':');
+            writeJsonValue(values[i]);
+         }
+         out.write("}\n");
+      } else {
+         for (int i = 0; i < columns.length; i++) {
+            if (i > 0) out.write(format == Format.CSV ? ',' : '\t');
+            if (values[i] != null) writeText(toText(values[i]));
+         }
+         out.write(format == Format.CSV ? CSV_LINE_END : "\n");
+      }
+      rows++;
+   }
+
+   public long getRows() {
+      return rows;
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Flush and close the file, reporting any error
+    */
+   public void finish() throws IOException {
+      out.close();
+   }
+
+   /**
+    * Close the file, ignoring errors; for use after a failed export
+    */
+   public void close() {
+      try {
+         out.close();
+      } catch (IOException e) {
+         System.err.println(getClass() + ".close(): " + e);
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private String toText(Object value) {
+      return (value instanceof java.util.Date) ? dateFormat.format((java.util.Date) value) : value.toString();
+   }
+
+   private void writeText(String text) throws IOException {
+      if (format == Format.CSV) writeCsv(text);
+      else writeTsv(text);
+   }
+
+   /**
+    * Quote the field if it has a separator, quote or line break, doubling any quotes
+    */
+   private void writeCsv(String text) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < text.length() && !quote; i++) {
+         char c = text.charAt(i);
+         quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+      }
+      if (!quote) {
+         out.write(text);
+         return;
+      }
+      out.write('"');
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c == '"') out.write('"');
+         out.write(c);
+      }
+      out.write('"');
+   }
+
+   /**
+    * Tabs, line breaks and backslashes are escaped with a backslash
+    */
+   private void writeTsv(String text) throws IOException {
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         switch (c) {
+            case '\t':
+               out.write("\\t");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            default:
+               out.write(c);
+         }
+      }
+   }
+
+   private void writeJsonValue(Object value) throws IOException {
+      if (value == null) {
+         out.write("null");
+      } else if (value instanceof Boolean) {
+         out.write(value.toString());
+      } else if (value instanceof Number && isFinite((Number) value)) {
+         out.write(value.toString());
+      } else {
+         writeJsonString(toText(value));
+      }
+   }
+
+   private boolean isFinite(Number value) {
+      if (value instanceof Double) return !((Double) value).isNaN() && !((Double) value).isInfinite();
+      if (value instanceof Float) return !((Float) value).isNaN() && !((Float) value).isInfinite();
+      return true;
+   }
+
+   private void writeJsonString(String text) throws IOException {
+      out.write('"');
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         switch (c) {
+            case '"':
+               out.write("\\\"");
+               break;
+            case '\\':
+               out.write("\\\\");
+               break;
+            case '\n':
+               out.write("\\n");
+               break;
+            case '\r':
+               out.write("\\r");
+               break;
+            case '\t':
+               out.write("\\t");
+               break;
+            default:
+               if (c < 0x20) out.write(String.format("\\u%04x", (int) c));
+               else out.write(c);
+         }
+      }
+      out.write('"');
+   }
+}
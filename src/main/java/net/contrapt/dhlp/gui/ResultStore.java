@@ -0,0 +1,428 @@
+package net.contrapt.dhlp.gui;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds fetched rows column by column.  Numeric and temporal columns are kept in primitive arrays and
+ * string columns are dictionary encoded while they repeat, then packed as utf-8, so a large result
+ * doesn't cost a boxed object (and an array per row) for every cell.  A column that gets a value it
+ * can't hold falls back to storing objects.  Once the rows in memory pass a row or byte threshold the
+ * rest are spilled to a temporary file.  One thread adds rows, and does any spilling, while the event
+ * thread reads the rows added so far
+ */
+public class ResultStore {
+
+   //
+   // PROPERTIES
+   //
+   private static final int INITIAL_CAPACITY = 1024;
+   // Give up on dictionary encoding a column once it has this many distinct values
+   private static final int DICTIONARY_LIMIT = 4096;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // Check the memory used every so many rows, since it means looking at every column
+   private static final int SPILL_CHECK_INTERVAL = 1024;
+
+   private Column[] columns;
+   private int size;
+   private int spillRows;
+   private long spillBytes;
+   private SpillFile spill;
+   private boolean closed;
+
+   //
+   // CONSTRUCTORS
+   //
+
+   /**
+    * Choose the storage for each column from its description
+    */
+   public ResultStore(ColumnDescriptor[] descriptors) {
+      this(descriptors, 0, 0);
+   }
+
+   /**
+    * Keep at most the given number of rows or bytes in memory; zero means no limit
+    */
+   public ResultStore(ColumnDescriptor[] descriptors, int spillRows, long spillBytes) {
+      this.spillRows = spillRows;
+      this.spillBytes = spillBytes;
+      columns = new Column[descriptors.length];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = createColumn(descriptors[i]);
+      }
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Append a row of values, one for each column
+    */
+   public synchronized void add(Object[] row) {
+      if (closed) return;
+      if (spill == null && isFull()) spill = new SpillFile();
+      if (spill != null) {
+         spill.add(row);
+         return;
+      }
+      for (int i = 0; i < columns.length; i++) {
+         Object value = row[i];
+         if (value != null && !columns[i].accepts(value)) columns[i] = new ObjectColumn(columns[i], size);
+         columns[i].set(size, value);
+      }
+      size++;
+   }
+
+   public synchronized Object get(int row, int column) {
+      if (row < 0 || column < 0 || column >= columns.length) return null;
+      if (row >= size) return (spill == null) ? null : spill.get(row - size, column);
+      return columns[column].get(row);
+   }
+
+   public synchronized int size() {
+      return (spill == null) ? size : size + spill.size();
+   }
+
+   public synchronized boolean isSpilled() {
+      return spill != null;
+   }
+
+   /**
+    * Approximate bytes used by the rows held in memory
+    */
+   public synchronized long getMemoryBytes() {
+      long bytes = 0;
+      for (Column column : columns) {
+         bytes += column.bytes();
+      }
+      return bytes;
+   }
+
+   /**
+    * Delete the spill file if there is one; rows added after this are ignored
+    */
+   public synchronized void close() {
+      closed = true;
+      if (spill != null) spill.close();
+      spill = null;
+   }
+
+   public int getColumnCount() {
+      return columns.length;
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   private boolean isFull() {
+      if (spillRows > 0 && size >= spillRows) return true;
+      return spillBytes > 0 && size % SPILL_CHECK_INTERVAL == 0 && getMemoryBytes() >= spillBytes;
+   }
+
+   private static Column createColumn(ColumnDescriptor column) {
+      switch (column.getType()) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+            return "java.lang.Long".equals(column.getClassName()) ? new LongColumn() : new IntColumn();
+         case Types.BIGINT:
+            return "java.math.BigInteger".equals(column.getClassName()) ? new ObjectColumn() : new LongColumn();
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            // Whole numbers which fit a long (eg oracle number(10)) don't need a BigDecimal each
+            int precision = column.getPrecision();
+            return (column.getScale() == 0 && precision > 0 && precision <= 18) ? new LongColumn() : new ObjectColumn();
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return new DoubleColumn();
+         case Types.DATE:
+         case Types.TIME:
+         case Types.TIMESTAMP:
+            return new TimestampColumn();
+         case Types.CHAR:
+         case Types.VARCHAR:
+         case Types.LONGVARCHAR:
+         case Types.NCHAR:
+         case Types.NVARCHAR:
+         case Types.LONGNVARCHAR:
+         case Types.BINARY:
+         case Types.VARBINARY:
+         case Types.LONGVARBINARY:
+         case Types.BLOB:
+         case Types.CLOB:
+         case Types.OTHER:
+            return new StringColumn();
+         default:
+            return new ObjectColumn();
+      }
+   }
+
+   private static int grow(int capacity, int needed) {
+      return Math.max(needed + 1, capacity + (capacity >> 1));
+   }
+
+   //
+   // COLUMNS
+   //
+
+   /**
+    * Storage for the values of one column
+    */
+   private static abstract class Column {
+
+      private long[] nulls = new long[INITIAL_CAPACITY >> 6];
+
+      abstract boolean accepts(Object value);
+
+      abstract Object get(int row);
+
+      /**
+       * Store the value at the given row; rows are always set in order
+       */
+      void set(int row, Object value) {
+         int word = row >> 6;
+         if (word >= nulls.length) nulls = Arrays.copyOf(nulls, grow(nulls.length, word));
+         if (value == null) {
+            nulls[word] |= 1L << row;
+            storeNull(row);
+         }
+         else store(row, value);
+      }
+
+      abstract void store(int row, Object value);
+
+      void storeNull(int row) {
+      }
+
+      boolean isNull(int row) {
+         return (nulls[row >> 6] & (1L << row)) != 0;
+      }
+
+      long bytes() {
+         return nulls.length * 8L;
+      }
+   }
+
+   private static class IntColumn extends Column {
+
+      private int[] values = new int[INITIAL_CAPACITY];
+
+      boolean accepts(Object value) {
+         return value instanceof Integer || value instanceof Short || value instanceof Byte;
+      }
+
+      void store(int row, Object value) {
+         if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+         values[row] = ((Number) value).intValue();
+      }
+
+      Object get(int row) {
+         return isNull(row) ? null : Integer.valueOf(values[row]);
+      }
+
+      long bytes() {
+         return super.bytes() + values.length * 4L;
+      }
+   }
+
+   private static class LongColumn extends Column {
+
+      private long[] values = new long[INITIAL_CAPACITY];
+
+      boolean accepts(Object value) {
+         if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) return true;
+         if (!(value instanceof BigDecimal)) return false;
+         // Whole numbers of up to 18 digits
+         BigDecimal decimal = (BigDecimal) value;
+         return decimal.scale() <= 0 && decimal.precision() - decimal.scale() <= 18;
+      }
+
+      void store(int row, Object value) {
+         if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+         values[row] = ((Number) value).longValue();
+      }
+
+      Object get(int row) {
+         return isNull(row) ? null : Long.valueOf(values[row]);
+      }
+
+      long bytes() {
+         return super.bytes() + values.length * 8L;
+      }
+   }
+
+   private static class DoubleColumn extends Column {
+
+      private double[] values = new double[INITIAL_CAPACITY];
+
+      boolean accepts(Object value) {
+         return value instanceof Double;
+      }
+
+      void store(int row, Object value) {
+         if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+         values[row] = (Double) value;
+      }
+
+      Object get(int row) {
+         return isNull(row) ? null : Double.valueOf(values[row]);
+      }
+
+      long bytes() {
+         return super.bytes() + values.length * 8L;
+      }
+   }
+
+   /**
+    * Dates, times and timestamps kept as epoch milliseconds
+    */
+   private static class TimestampColumn extends Column {
+
+      private long[] values = new long[INITIAL_CAPACITY];
+
+      boolean accepts(Object value) {
+         return value instanceof java.util.Date;
+      }
+
+      void store(int row, Object value) {
+         if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+         values[row] = ((java.util.Date) value).getTime();
+      }
+
+      Object get(int row) {
+         return isNull(row) ? null : new Timestamp(values[row]);
+      }
+
+      long bytes() {
+         return super.bytes() + values.length * 8L;
+      }
+   }
+
+   /**
+    * Strings are dictionary encoded until there are too many distinct values, then each value is
+    * packed into one utf-8 byte array
+    */
+   private static class StringColumn extends Column {
+
+      private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+      private String[] words = new String[64];
+      private int[] codes = new int[INITIAL_CAPACITY];
+      // Once packed, the value for a row is the bytes from the end of the previous row to its end
+      private byte[] bytes;
+      private int[] ends;
+      private int length;
+      private long dictionaryBytes;
+
+      boolean accepts(Object value) {
+         return value instanceof String;
+      }
+
+      void store(int row, Object value) {
+         String string = (String) value;
+         if (bytes == null) {
+            Integer code = dictionary.get(string);
+            if (code == null && dictionary.size() < DICTIONARY_LIMIT) {
+               code = dictionary.size();
+               if (code >= words.length) words = Arrays.copyOf(words, words.length * 2);
+               words[code] = string;
+               dictionary.put(string, code);
+               // The string and its map entry
+               dictionaryBytes += 2L * string.length() + 96;
+            }
+            if (code != null) {
+               if (row >= codes.length) codes = Arrays.copyOf(codes, grow(codes.length, row));
+               codes[row] = code;
+               return;
+            }
+            pack(row);
+         }
+         append(row, string.getBytes(UTF8));
+      }
+
+      void storeNull(int row) {
+         if (bytes != null) append(row, new byte[0]);
+      }
+
+      Object get(int row) {
+         if (isNull(row)) return null;
+         if (bytes == null) return words[codes[row]];
+         int start = (row == 0) ? 0 : ends[row - 1];
+         return new String(bytes, start, ends[row] - start, UTF8);
+      }
+
+      long bytes() {
+         if (bytes == null) return super.bytes() + codes.length * 4L + words.length * 8L + dictionaryBytes;
+         return super.bytes() + bytes.length + ends.length * 4L;
+      }
+
+      /**
+       * Switch from the dictionary to packed bytes, copying the rows stored so far
+       */
+      private void pack(int rows) {
+         bytes = new byte[INITIAL_CAPACITY * 16];
+         ends = new int[Math.max(INITIAL_CAPACITY, codes.length)];
+         for (int row = 0; row < rows; row++) {
+            append(row, isNull(row) ? new byte[0] : words[codes[row]].getBytes(UTF8));
+         }
+         dictionary = null;
+         words = null;
+         codes = null;
+      }
+
+      private void append(int row, byte[] value) {
+         if (row >= ends.length) ends = Arrays.copyOf(ends, grow(ends.length, row));
+         if (length + value.length > bytes.length) bytes = Arrays.copyOf(bytes, grow(bytes.length, length + value.length));
+         System.arraycopy(value, 0, bytes, length, value.length);
+         length += value.length;
+         ends[row] = length;
+      }
+   }
+
+   /**
+    * Anything else is kept as returned by the driver
+    */
+   private static class ObjectColumn extends Column {
+
+      private Object[] values = new Object[INITIAL_CAPACITY];
+
+      ObjectColumn() {
+      }
+
+      /**
+       * Take over the rows already stored by a column which can't hold a new value
+       */
+      ObjectColumn(Column column, int rows) {
+         values = new Object[Math.max(INITIAL_CAPACITY, rows + 1)];
+         for (int row = 0; row < rows; row++) {
+            set(row, column.get(row));
+         }
+      }
+
+      boolean accepts(Object value) {
+         return true;
+      }
+
+      void store(int row, Object value) {
+         if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+         values[row] = value;
+      }
+
+      Object get(int row) {
+         return isNull(row) ? null : values[row];
+      }
+
+      long bytes() {
+         // A guess at the size of the values themselves
+         return super.bytes() + values.length * 40L;
+      }
+   }
+}
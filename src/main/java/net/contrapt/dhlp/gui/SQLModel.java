@@ -1,6 +1,7 @@
 package net.contrapt.dhlp.gui;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.sql.SQLException;
 
 /**
@@ -8,13 +9,15 @@ import java.sql.SQLException;
 */
 public interface SQLModel {
 
-   public void execute();
+   public void execute(boolean limited);
    public void fetch(boolean limited);
+   public boolean hasMore();
    public void cancel();
    public void close();
    public void commit();
    public void rollback();
    public void export(BufferedWriter out);
+   public long export(File file, ResultExporter.Format format, boolean gzip);
    public int getRowCount();
    public String getAction();
    public String getOperation();
@@ -1,11 +1,16 @@
 package net.contrapt.dhlp.gui;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.StringWriter;
 import java.sql.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import net.contrapt.dhlp.common.*;
 import net.contrapt.dhlp.jedit.DHLPlugin;
@@ -22,6 +27,16 @@ public abstract class SQLPanel extends JPanel {
    private long executionTime;
    private boolean pinned = false;
    private boolean limited = true;
+   // Set while rows are being fetched so scrolling doesn't start another fetch
+   private final AtomicBoolean fetching = new AtomicBoolean();
+
+   // Fetch the next page when the view is scrolled within this many screens of the end
+   private static final int FETCH_AHEAD_SCREENS = 2;
+   // Longest timeout which can be chosen for a tab (s)
+   private static final int MAX_TIMEOUT = 24 * 60 * 60;
+
+   // Runs this panel's tasks one at a time in order; replaced if the task executor is restarted
+   private TaskExecutor.Lane lane;
 
    private JScrollPane resultPanel;
    private JPanel statusPanel;
@@ -46,35 +61,47 @@ public abstract class SQLPanel extends JPanel {
             new Runnable() {
                @Override
                public void run() {
-                  doExecute();
+                  fetching.set(true);
+                  try {
+                     doExecute();
+                  } finally {
+                     fetching.set(false);
+                     SwingUtilities.invokeLater(FetchAheadCheck);
+                  }
                }
             }, "execute");
    }
 
    /**
-    * Setup and spawn task to fetch rows
+    * Setup and spawn task to fetch the next rows, unless rows are already being fetched
     */
    public final void fetch() {
+      if (!getModel().hasMore() || !fetching.compareAndSet(false, true)) return;
       startTaskThread(
             new Runnable() {
                @Override
                public void run() {
-                  doFetch();
+                  try {
+                     doFetch();
+                  } finally {
+                     fetching.set(false);
+                     SwingUtilities.invokeLater(FetchAheadCheck);
+                  }
                }
             }, "fetch");
    }
 
    /**
-    * Cancel the currently running sql statement
+    * Cancel the currently running sql statement; this doesn't wait behind the statement's task
     */
    public final void cancel() {
-      startTaskThread(
+      TaskExecutor.getInstance().executeNow(
             new Runnable() {
                @Override
                public void run() {
                   doCancel();
                }
-            }, "cancel");
+            }, getClass().getSimpleName() + ".cancel");
    }
 
    /**
@@ -104,16 +131,23 @@ public abstract class SQLPanel extends JPanel {
    }
 
    /**
-    * Close this panel
+    * Close this panel, cancelling any statement still running so the close isn't stuck behind it
     */
    public final void close() {
-      startTaskThread(
-            new Runnable() {
-               @Override
-               public void run() {
-                  doClose();
-               }
-            }, "close");
+      try {
+         if (getLane().isBusy()) cancel();
+         startTaskThread(
+               new Runnable() {
+                  @Override
+                  public void run() {
+                     doClose();
+                  }
+               }, "close");
+         getLane().release();
+      } catch (RejectedExecutionException e) {
+         // The plugin has stopped; close here rather than leave the connection open
+         doClose();
+      }
    }
 
    /**
@@ -123,6 +157,24 @@ public abstract class SQLPanel extends JPanel {
       doExport();
    }
 
+   /**
+    * Choose a file and stream the query results to it; the format comes from the file extension
+    */
+   public final void exportFile() {
+      JFileChooser chooser = new JFileChooser();
+      chooser.setDialogTitle("Export to .csv, .tsv or .jsonl (add .gz to compress)");
+      if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+      final File file = chooser.getSelectedFile();
+      if (file.exists() && JOptionPane.showConfirmDialog(this, "Overwrite " + file + "?", "Export", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) return;
+      startTaskThread(
+            new Runnable() {
+               @Override
+               public void run() {
+                  doExportFile(file);
+               }
+            }, "export");
+   }
+
    /**
     * Implement this method to return SQLModel which implements the various operations called by
     * the actions
@@ -142,14 +194,45 @@ public abstract class SQLPanel extends JPanel {
    }
 
    /**
-    * Reset the result panel
+    * Reset the result panel for a new model, closing the model it replaces so its connection
+    * goes back to the pool
     */
-   protected void reinit() {
-      doClose();
+   protected void reinit(final SQLModel previous) {
+      if (previous != null) {
+         startTaskThread(
+               new Runnable() {
+                  @Override
+                  public void run() {
+                     try {
+                        previous.close();
+                     } catch (Exception e) {
+                        System.err.println(getClass() + ".reinit(): " + e);
+                     }
+                  }
+               }, "close");
+      }
       removeAll();
       layoutComponents();
    }
 
+   /**
+    * Override to add controls for options of the panel next to the pin and limit boxes
+    */
+   protected void addOptions(JPanel options) {
+   }
+
+   /**
+    * Add a control for the seconds a statement may run, zero for no timeout; the listener is told of
+    * each change
+    */
+   protected void addTimeoutOption(JPanel options, int seconds, ChangeListener listener) {
+      JSpinner timeout = new JSpinner(new SpinnerNumberModel(seconds, 0, MAX_TIMEOUT, 10));
+      timeout.setToolTipText("Seconds a statement may run before it is cancelled (0 for no timeout)");
+      timeout.addChangeListener(listener);
+      options.add(new JLabel("Timeout (s)"));
+      options.add(timeout);
+   }
+
    /**
     * Create and layout components
     */
@@ -157,6 +240,7 @@ public abstract class SQLPanel extends JPanel {
       // Create a scrolling panel for the sql results
       resultPanel = new JScrollPane(getComponent());
       resultPanel.setAutoscrolls(true);
+      resultPanel.getViewport().addChangeListener(FetchAheadListener);
       // Create a panel to show status
       statusText = new JTextField("", 60);
       statusText.setEditable(false);
@@ -169,6 +253,7 @@ public abstract class SQLPanel extends JPanel {
       JPanel boxPanel = new JPanel();
       boxPanel.add(pinnedBox);
       boxPanel.add(limitedBox);
+      addOptions(boxPanel);
       statusPanel.add(boxPanel, BorderLayout.EAST);
       // Put them all together on the content pane
       setLayout(new BorderLayout());
@@ -183,7 +268,7 @@ public abstract class SQLPanel extends JPanel {
       try {
          statusText.setText("Executing...");
          executionTime = System.currentTimeMillis();
-         getModel().execute();
+         getModel().execute(limited);
          executionTime = System.currentTimeMillis() - executionTime;
          executionCount++;
          displayExecutionStatus();
@@ -280,6 +365,21 @@ public abstract class SQLPanel extends JPanel {
       }
    }
 
+   /**
+    * Export all the rows for the model to a file
+    */
+   private void doExportFile(File file) {
+      try {
+         statusText.setText("Exporting to " + file + "...");
+         long time = System.currentTimeMillis();
+         long rows = getModel().export(file, ResultExporter.Format.forFile(file), ResultExporter.isGzip(file));
+         double elapsed = (System.currentTimeMillis() - time) / 1000.00;
+         statusText.setText("Exported " + rows + " rows to " + file + " (" + elapsed + "s)");
+      } catch (Exception e) {
+         statusText.setText("Error exporting data: " + e.getMessage());
+      }
+   }
+
    /**
     * Display the query execution statistics in the status bar
     */
@@ -313,15 +413,50 @@ public abstract class SQLPanel extends JPanel {
    }
 
    /**
-    * Start a thread to execute the given sql task
+    * Queue the given sql task to run after the panel's earlier tasks
     */
    private void startTaskThread(Runnable task, String name) {
-      Thread taskThread = new Thread(task, getClass().getSimpleName() + "." + name);
-      taskThread.setDaemon(true);
-      taskThread.setPriority(Thread.NORM_PRIORITY);
-      taskThread.start();
+      try {
+         getLane().execute(task, name);
+      } catch (RejectedExecutionException e) {
+         // Shut down since the lane was taken; the next lane comes from the new executor
+         getLane().execute(task, name);
+      }
+   }
+
+   /**
+    * Return this panel's lane, taking a new one if the task executor has been shut down and started
+    * since (the plugin was reloaded); throws RejectedExecutionException if the plugin has stopped
+    */
+   private synchronized TaskExecutor.Lane getLane() {
+      if (lane == null || lane.isShutdown()) lane = TaskExecutor.getInstance().newLane(getClass().getSimpleName());
+      return lane;
+   }
+
+   /**
+    * Fetch the next page in the background if the view is near the last row fetched
+    */
+   private void fetchAhead() {
+      if (fetching.get() || !getModel().hasMore()) return;
+      JViewport viewport = resultPanel.getViewport();
+      Rectangle visible = viewport.getViewRect();
+      int remaining = viewport.getViewSize().height - (visible.y + visible.height);
+      if (remaining <= FETCH_AHEAD_SCREENS * visible.height) fetch();
    }
 
+   private ChangeListener FetchAheadListener = new ChangeListener() {
+      public void stateChanged(ChangeEvent e) {
+         fetchAhead();
+      }
+   };
+
+   // Checks again once a fetch finishes, in case the rows fetched didn't fill the view
+   private Runnable FetchAheadCheck = new Runnable() {
+      public void run() {
+         fetchAhead();
+      }
+   };
+
    private Action PinnedAction = new AbstractAction("Pin?") {
       public void actionPerformed(ActionEvent e) {
          pinned = !pinned;
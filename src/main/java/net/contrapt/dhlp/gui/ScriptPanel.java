@@ -0,0 +1,117 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.ConnectionPool;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+
+/**
+* A panel which runs a script of sql statements and shows the outcome of each, with the rows returned by
+* the selected statement below
+*/
+public class ScriptPanel extends SQLPanel {
+   
+   private ScriptTableModel model;
+   private JTable resultTable;
+   private JSplitPane splitPane;
+   
+   public ScriptPanel(ConnectionPool pool, String sql) {
+      model = new ScriptTableModel(pool, sql);
+      resultTable = new JTable();
+      resultTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+      splitPane = new FittedSplitPane(new JScrollPane(model.getTable()), new JScrollPane(resultTable));
+      model.getTable().getSelectionModel().addListSelectionListener(SelectionListener);
+      model.addTableModelListener(UpdateListener);
+      initialize();
+   }
+
+   @Override
+   public SQLModel getModel() {
+      return model;
+   }
+
+   @Override
+   public JComponent getComponent() {
+      return splitPane;
+   }
+
+   @Override
+   protected void addOptions(JPanel options) {
+      JCheckBox continueBox = new JCheckBox(ContinueAction);
+      continueBox.setSelected(model.isContinueOnError());
+      options.add(continueBox);
+      addTimeoutOption(options, model.getQueryTimeout(), TimeoutListener);
+   }
+
+   /**
+    * Show the rows of the selected statement
+    */
+   private void showSelected() {
+      resultTable.setModel(model.getResultModel(model.getTable().getSelectedRow()));
+   }
+
+   private ListSelectionListener SelectionListener = new ListSelectionListener() {
+      public void valueChanged(ListSelectionEvent e) {
+         if (!e.getValueIsAdjusting()) showSelected();
+      }
+   };
+
+   private TableModelListener UpdateListener = new TableModelListener() {
+      public void tableChanged(TableModelEvent e) {
+         int selected = model.getTable().getSelectedRow();
+         if (e.getFirstRow() <= selected && selected <= e.getLastRow()) showSelected();
+      }
+   };
+
+   private ChangeListener TimeoutListener = new ChangeListener() {
+      public void stateChanged(ChangeEvent e) {
+         model.setQueryTimeout((Integer) ((JSpinner) e.getSource()).getValue());
+      }
+   };
+
+   private Action ContinueAction = new AbstractAction("Continue on error?") {
+      public void actionPerformed(ActionEvent e) {
+         model.setContinueOnError(!model.isContinueOnError());
+      }
+   };
+
+   /**
+    * Fills the scroll pane it is put in, so the statements and rows scroll separately
+    */
+   private static class FittedSplitPane extends JSplitPane implements Scrollable {
+
+      FittedSplitPane(JComponent top, JComponent bottom) {
+         super(JSplitPane.VERTICAL_SPLIT, top, bottom);
+         setResizeWeight(0.5);
+      }
+
+      public Dimension getPreferredScrollableViewportSize() {
+         return getPreferredSize();
+      }
+
+      public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+         return 1;
+      }
+
+      public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+         return 1;
+      }
+
+      public boolean getScrollableTracksViewportWidth() {
+         return true;
+      }
+
+      public boolean getScrollableTracksViewportHeight() {
+         return true;
+      }
+   }
+   
+}
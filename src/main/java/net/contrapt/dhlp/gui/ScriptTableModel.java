@@ -0,0 +1,501 @@
+package net.contrapt.dhlp.gui;
+
+import net.contrapt.dhlp.common.ConnectionPool;
+import net.contrapt.dhlp.common.SqlScript;
+import net.contrapt.dhlp.common.StatementWatchdog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableModel;
+
+/**
+ * Run a script of sql statements one after another, showing the outcome and time of each in a table
+ * and the first rows returned by each query.  Consecutive inserts, updates and deletes are sent to the
+ * database together as a jdbc batch
+ */
+public class ScriptTableModel extends AbstractTableModel implements SQLModel {
+
+   //
+   // PROPERTIES
+   //
+   private static final String[] COLUMNS = {"#", "Statement", "Result", "Time (ms)"};
+   // Most statements sent in one batch
+   private static final int MAX_BATCH = 500;
+   // Statements are shown up to this long in the table
+   private static final int MAX_STATEMENT_LENGTH = 200;
+   // Rows of each query kept to show; the rest are only counted
+   private static final int MAX_RESULT_ROWS = 1000;
+
+   private String sql;
+   private ConnectionPool pool;
+   private Connection connection;
+   private volatile Statement current;
+   private volatile boolean cancelled;
+   private volatile boolean continueOnError = false;
+   // Seconds each statement may run; negative means use the connection's setting
+   private volatile int queryTimeout = -1;
+   // Set when a batch fails without saying which of its statements ran, so the script can't go on
+   private volatile boolean stopped;
+   // Replaced on the event thread when the script is run
+   private volatile List<Step> steps = Collections.emptyList();
+   private JTable table;
+
+   //
+   // CONSTRUCTORS
+   //
+   public ScriptTableModel(ConnectionPool pool, String sql) {
+      this.pool = pool;
+      this.sql = sql;
+      table = new JTable(this);
+      table.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+      table.getColumnModel().getColumn(0).setPreferredWidth(40);
+      table.getColumnModel().getColumn(1).setPreferredWidth(400);
+      table.getColumnModel().getColumn(2).setPreferredWidth(300);
+      table.getColumnModel().getColumn(3).setPreferredWidth(80);
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   public JTable getTable() {
+      return table;
+   }
+
+   public boolean isContinueOnError() {
+      return continueOnError;
+   }
+
+   /**
+    * Whether to run the rest of the script after a statement fails
+    */
+   public void setContinueOnError(boolean continueOnError) {
+      this.continueOnError = continueOnError;
+   }
+
+   /**
+    * Seconds each statement may run before it is cancelled, zero for no timeout
+    */
+   public int getQueryTimeout() {
+      return (queryTimeout < 0) ? pool.getQueryTimeout() : queryTimeout;
+   }
+
+   /**
+    * Override the connection's query timeout for this tab
+    */
+   public void setQueryTimeout(int seconds) {
+      this.queryTimeout = seconds;
+   }
+
+   /**
+    * Split the script and run each statement, batching consecutive dml; when limited, queries only
+    * count up to the fetch limit rows
+    */
+   public void execute(boolean limited) {
+      if (sql == null) return;
+      final List<Step> script = new ArrayList<Step>();
+      for (String statement : SqlScript.split(sql)) {
+         script.add(new Step(script.size() + 1, statement));
+      }
+      runOnEventThread(new Runnable() {
+         @Override
+         public void run() {
+            steps = script;
+            fireTableDataChanged();
+         }
+      });
+      cancelled = false;
+      stopped = false;
+      connection = connection == null ? pool.takeConnection(this) : connection;
+      if (connection == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      Statement statement = null;
+      try {
+         statement = connection.createStatement();
+         StatementWatchdog.setQueryTimeout(statement, getQueryTimeout());
+         current = statement;
+         int i = 0;
+         while (i < script.size() && !cancelled) {
+            int end = i;
+            while (end < script.size() && end - i < MAX_BATCH && script.get(end).dml) end++;
+            int handled = (end - i > 1) ? runBatch(statement, script.subList(i, end)) : run(statement, script.get(i), limited);
+            boolean failed = false;
+            for (int j = i; j < i + handled; j++) {
+               failed |= script.get(j).failed;
+            }
+            i += handled;
+            if (connection == null || stopped) break;
+            if (failed && !continueOnError) break;
+         }
+         for (; i < script.size(); i++) {
+            if (script.get(i).result == null) update(script.get(i), cancelled ? "Cancelled" : "Skipped", 0);
+         }
+      } catch (SQLException e) {
+         throw new IllegalStateException("Error running sql script", e);
+      } finally {
+         current = null;
+         try {
+            if (statement != null) statement.close();
+         } catch (SQLException e) {
+            System.err.println(getClass() + ".execute(): " + e);
+         }
+      }
+   }
+
+   public void fetch(boolean limited) {
+      // Statements are run to completion by execute
+   }
+
+   public boolean hasMore() {
+      return false;
+   }
+
+   /**
+    * Cancel the running statement and skip the rest of the script
+    */
+   public void cancel() {
+      cancelled = true;
+      try {
+         Statement statement = current;
+         if (statement != null) statement.cancel();
+      } catch (SQLException e) {
+         System.err.println(getClass() + ".cancel(): " + e);
+      }
+   }
+
+   public void commit() {
+      try {
+         pool.dataChanged();
+         if (connection != null) connection.commit();
+      } catch (SQLException e) {
+         throw new IllegalStateException("Error committing transaction", e);
+      }
+   }
+
+   public void rollback() {
+      try {
+         pool.dataChanged();
+         if (connection != null) connection.rollback();
+      } catch (SQLException e) {
+         throw new IllegalStateException("Error rolling back transaction", e);
+      }
+   }
+
+   /**
+    * Return a table model of the rows returned by the statement at the given row of the table; empty
+    * if it wasn't a query
+    */
+   public TableModel getResultModel(int row) {
+      Step step = (row >= 0 && row < steps.size()) ? steps.get(row) : null;
+      return (step == null || step.columns == null) ? new DefaultTableModel() : new StepResultModel(step.columns, step.rows);
+   }
+
+   /**
+    * Export the outcome of each statement
+    */
+   public void export(BufferedWriter out) {
+      try {
+         for (Step step : steps) {
+            out.write(step.number + "\t" + step.result + "\t" + step.elapsed + "ms");
+            out.newLine();
+            out.write(step.sql);
+            out.newLine();
+            out.newLine();
+         }
+      } catch (IOException e) {
+         throw new RuntimeException("Error exporting row", e);
+      }
+   }
+
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      return 0;
+   }
+
+   public void close() {
+      cancel();
+      if (connection != null) pool.returnConnection(connection);
+      connection = null;
+   }
+
+   public String getAction() {
+      int failed = 0;
+      for (Step step : steps) {
+         if (step.failed) failed++;
+      }
+      return steps.size() + " statements run" + (failed > 0 ? ", " + failed + " failed" : "");
+   }
+
+   public String getOperation() {
+      return sql;
+   }
+
+   public String getSql() {
+      return sql;
+   }
+
+   //
+   // OVERRIDES
+   //
+
+   public int getRowCount() {
+      return steps.size();
+   }
+
+   public int getColumnCount() {
+      return COLUMNS.length;
+   }
+
+   @Override
+   public String getColumnName(int column) {
+      return COLUMNS[column];
+   }
+
+   public Object getValueAt(int row, int column) {
+      if (row >= steps.size()) return null;
+      Step step = steps.get(row);
+      switch (column) {
+         case 0:
+            return step.number;
+         case 1:
+            return step.text;
+         case 2:
+            return step.result;
+         default:
+            return (step.result == null) ? null : step.elapsed;
+      }
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Run one statement; returns the number of statements handled, which is always one
+    */
+   private int run(Statement statement, Step step, boolean limited) {
+      long start = System.nanoTime();
+      StatementWatchdog.Watch watch = StatementWatchdog.getInstance().watch(pool, connection, statement, getQueryTimeout());
+      try {
+         int limit = limited ? pool.getFetchLimit() : 0;
+         statement.setMaxRows(Math.max(0, limit));
+         String result;
+         if (statement.execute(step.sql)) {
+            ResultSet rows = statement.getResultSet();
+            int count = 0;
+            int keep = (limit > 0) ? Math.min(limit, MAX_RESULT_ROWS) : MAX_RESULT_ROWS;
+            List<Object[]> kept = new ArrayList<Object[]>();
+            ColumnDescriptor[] columns;
+            try {
+               columns = ColumnDescriptor.describe(rows.getMetaData());
+               while (rows.next()) {
+                  if (count++ < keep) kept.add(read(columns, rows));
+               }
+            } finally {
+               rows.close();
+            }
+            step.columns = columns;
+            step.rows = kept;
+            result = count + (count == 1 ? " row" : " rows") + " retrieved" + (limit > 0 && count == limit ? " (limited)" : "")
+                  + (count > kept.size() ? ", first " + kept.size() + " shown" : "");
+         } else {
+            int count = statement.getUpdateCount();
+            result = (count < 0) ? "Done" : count + (count == 1 ? " row" : " rows") + " affected";
+         }
+         pool.getMetrics().getExecute().recordSince(start);
+         update(step, result, elapsed(start));
+      } catch (SQLException e) {
+         fail(step, e, watch, elapsed(start));
+      } finally {
+         watch.done();
+         if (watch.isEvicted()) connection = null;
+         if (!SqlScript.isReadOnly(step.sql)) pool.dataChanged();
+      }
+      return 1;
+   }
+
+   /**
+    * Run the statements as a batch; returns the number of statements handled, which stops after the
+    * failed statement if the driver stopped there
+    */
+   private int runBatch(Statement statement, List<Step> batch) {
+      long start = System.nanoTime();
+      int[] counts;
+      SQLException error = null;
+      StatementWatchdog.Watch watch = StatementWatchdog.getInstance().watch(pool, connection, statement, getQueryTimeout());
+      try {
+         for (Step step : batch) {
+            statement.addBatch(step.sql);
+         }
+         counts = statement.executeBatch();
+      } catch (BatchUpdateException e) {
+         counts = e.getUpdateCounts();
+         error = e;
+      } catch (SQLException e) {
+         counts = null;
+         error = e;
+      } finally {
+         watch.done();
+         if (watch.isEvicted()) connection = null;
+         try {
+            statement.clearBatch();
+         } catch (SQLException e) {
+            System.err.println(getClass() + ".runBatch(): " + e);
+         }
+      }
+      pool.getMetrics().getExecute().recordSince(start);
+      pool.dataChanged();
+      // The batch's time is shared between its statements
+      long elapsed = elapsed(start) / batch.size();
+      if (counts == null) {
+         // Some of the batch may have run, so running the rest again could repeat them
+         stopped = true;
+         for (Step step : batch) {
+            step.failed = true;
+            update(step, "Batch failed, not known which statements ran; script stopped: " + error.getMessage(), elapsed);
+         }
+         if (watch.isEvicted()) connection = null;
+         return batch.size();
+      }
+      int failed = -1;
+      for (int i = 0; i < batch.size(); i++) {
+         Step step = batch.get(i);
+         if (i < counts.length && counts[i] != Statement.EXECUTE_FAILED) {
+            int count = counts[i];
+            update(step, (count == Statement.SUCCESS_NO_INFO) ? "Done (batch)" : count + (count == 1 ? " row" : " rows") + " affected (batch)", elapsed);
+         } else if (error != null && failed < 0) {
+            // Drivers which stop at the failure return counts up to it; the rest weren't run
+            failed = i;
+            fail(step, error, watch, elapsed);
+         } else if (i < counts.length) {
+            fail(step, error, watch, elapsed);
+         }
+      }
+      return (failed < 0) ? batch.size() : Math.max(failed + 1, counts.length);
+   }
+
+   /**
+    * Read a row for showing; a value which can't be read is shown as the error
+    */
+   private Object[] read(ColumnDescriptor[] columns, ResultSet rows) {
+      Object[] row = new Object[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+         try {
+            row[i] = columns[i].read(rows, i + 1);
+         } catch (Exception e) {
+            row[i] = e.toString();
+         }
+      }
+      return row;
+   }
+
+   private long elapsed(long start) {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+   }
+
+   /**
+    * Record a failed statement; if the watchdog had to close the connection the script can't go on
+    */
+   private void fail(Step step, SQLException e, StatementWatchdog.Watch watch, long elapsed) {
+      step.failed = true;
+      update(step, watch.isCancelled() ? watch.getDescription() : "Error: " + e.getMessage(), elapsed);
+      if (watch.isEvicted()) connection = null;
+   }
+
+   /**
+    * Record the outcome of a statement and show it in the table
+    */
+   private void update(final Step step, String result, long elapsed) {
+      step.elapsed = elapsed;
+      step.result = result;
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            int row = step.number - 1;
+            if (row < steps.size() && steps.get(row) == step) fireTableRowsUpdated(row, row);
+         }
+      });
+   }
+
+   /**
+    * Run the task on the event thread and wait for it to finish
+    */
+   private void runOnEventThread(Runnable task) {
+      if (SwingUtilities.isEventDispatchThread()) {
+         task.run();
+         return;
+      }
+      try {
+         SwingUtilities.invokeAndWait(task);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (InvocationTargetException e) {
+         throw new IllegalStateException("Error updating table", e.getCause());
+      }
+   }
+
+   /**
+    * One statement of the script and how it went
+    */
+   private static class Step {
+
+      final int number;
+      final String sql;
+      final boolean dml;
+      // The statement on one line, for the table
+      final String text;
+      volatile String result;
+      volatile long elapsed;
+      volatile boolean failed;
+      // What a query returned
+      volatile ColumnDescriptor[] columns;
+      volatile List<Object[]> rows;
+
+      Step(int number, String sql) {
+         this.number = number;
+         this.sql = sql;
+         this.dml = SqlScript.isDml(sql);
+         String text = sql.replaceAll("\\s+", " ");
+         this.text = (text.length() > MAX_STATEMENT_LENGTH) ? text.substring(0, MAX_STATEMENT_LENGTH) + "..." : text;
+      }
+   }
+
+   /**
+    * The rows kept from one query, for showing alongside the script
+    */
+   private static class StepResultModel extends AbstractTableModel {
+
+      private final ColumnDescriptor[] columns;
+      private final List<Object[]> rows;
+
+      StepResultModel(ColumnDescriptor[] columns, List<Object[]> rows) {
+         this.columns = columns;
+         this.rows = rows;
+      }
+
+      public int getRowCount() {
+         return rows.size();
+      }
+
+      public int getColumnCount() {
+         return columns.length;
+      }
+
+      @Override
+      public String getColumnName(int column) {
+         return columns[column].getLabel();
+      }
+
+      public Object getValueAt(int row, int column) {
+         return rows.get(row)[column];
+      }
+   }
+}
@@ -0,0 +1,294 @@
+package net.contrapt.dhlp.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rows written to a temporary file in a compact binary format so a very large result doesn't have to
+ * fit in the heap.  An index of row offsets gives random access; each segment of the file is memory
+ * mapped by the writer as it fills, rows not yet written are read from the write buffer, and the last
+ * row read is kept decoded since the table asks for one cell at a time.  Reading never writes or maps
+ * the file unless a segment has been unmapped to make room.  Not thread safe
+ */
+public class SpillFile {
+
+   //
+   // PROPERTIES
+   //
+   private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+   // Mapped segments kept open; more are mapped again when needed
+   private static final int MAX_SEGMENTS = 16;
+   private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // Value tags
+   private static final byte NULL = 0;
+   private static final byte INT = 1;
+   private static final byte LONG = 2;
+   private static final byte DOUBLE = 3;
+   private static final byte FLOAT = 4;
+   private static final byte TIMESTAMP = 5;
+   private static final byte BOOLEAN = 6;
+   private static final byte DECIMAL = 7;
+   private static final byte STRING = 8;
+
+   private File file;
+   private FileChannel channel;
+   private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+   private ByteBuffer rowBuffer = ByteBuffer.allocate(4096);
+   // Bytes written to the channel, and including those still in the write buffer
+   private long written;
+   private long length;
+   private long[] index = new long[1024];
+   private int size;
+   private Map<Long, MappedByteBuffer> segments = new LinkedHashMap<Long, MappedByteBuffer>(MAX_SEGMENTS, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+         if (size() <= MAX_SEGMENTS) return false;
+         unmap(eldest.getValue());
+         return true;
+      }
+   };
+   private int decodedRow = -1;
+   private Object[] decoded;
+
+   //
+   // CONSTRUCTORS
+   //
+   public SpillFile() {
+      try {
+         file = File.createTempFile("dhlp-result", ".rows");
+         channel = new RandomAccessFile(file, "rw").getChannel();
+      } catch (IOException e) {
+         throw new IllegalStateException("Error creating result spill file", e);
+      }
+   }
+
+   //
+   // PUBLIC METHODS
+   //
+
+   /**
+    * Append a row to the file
+    */
+   public void add(Object[] row) {
+      rowBuffer.clear();
+      for (Object value : row) {
+         encode(value);
+      }
+      rowBuffer.flip();
+      try {
+         if (rowBuffer.remaining() > writeBuffer.remaining()) flush();
+         if (rowBuffer.remaining() > writeBuffer.remaining()) {
+            written += write(rowBuffer, written);
+         } else {
+            writeBuffer.put(rowBuffer);
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Error writing result spill file " + file, e);
+      }
+      if (size == index.length) index = Arrays.copyOf(index, size * 2);
+      index[size++] = length;
+      length += rowBuffer.limit();
+   }
+
+   public Object get(int row, int column) {
+      if (row < 0 || row >= size) return null;
+      if (row != decodedRow) {
+         decoded = decode(read(row));
+         decodedRow = row;
+      }
+      return (column < decoded.length) ? decoded[column] : null;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Close and delete the file
+    */
+   public void close() {
+      for (MappedByteBuffer segment : segments.values()) {
+         unmap(segment);
+      }
+      segments.clear();
+      decoded = null;
+      try {
+         channel.close();
+      } catch (IOException e) {
+         System.err.println(getClass() + ".close(): " + e);
+      }
+      // If a segment couldn't be unmapped some platforms keep the file until it is collected
+      if (!file.delete()) file.deleteOnExit();
+   }
+
+   //
+   // PRIVATE METHODS
+   //
+
+   /**
+    * Return a buffer holding the bytes of the given row
+    */
+   private ByteBuffer read(int row) {
+      long start = index[row];
+      long end = (row + 1 < size) ? index[row + 1] : length;
+      if (start >= written) {
+         // Still in the write buffer
+         ByteBuffer bytes = writeBuffer.duplicate();
+         bytes.limit((int) (end - written));
+         bytes.position((int) (start - written));
+         return bytes;
+      }
+      try {
+         long segment = start / SEGMENT_SIZE;
+         long segmentStart = segment * SEGMENT_SIZE;
+         // Only whole segments are mapped; rows in the unfinished segment or across segments are read
+         if (end <= segmentStart + SEGMENT_SIZE && segmentStart + SEGMENT_SIZE <= written) {
+            ByteBuffer mapped = segments.get(segment);
+            if (mapped == null) {
+               mapped = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, SEGMENT_SIZE);
+               segments.put(segment, (MappedByteBuffer) mapped);
+            }
+            ByteBuffer bytes = mapped.duplicate();
+            bytes.position((int) (start - segmentStart));
+            bytes.limit((int) (end - segmentStart));
+            return bytes;
+         }
+         ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+         while (bytes.hasRemaining()) {
+            if (channel.read(bytes, start + bytes.position()) < 0) break;
+         }
+         bytes.flip();
+         return bytes;
+      } catch (IOException e) {
+         throw new IllegalStateException("Error reading result spill file " + file, e);
+      }
+   }
+
+   /**
+    * Write the buffered rows and map any segments they complete, so readers find them mapped
+    */
+   private void flush() throws IOException {
+      writeBuffer.flip();
+      long previous = written;
+      written += write(writeBuffer, written);
+      writeBuffer.clear();
+      for (long segment = previous / SEGMENT_SIZE; (segment + 1) * SEGMENT_SIZE <= written; segment++) {
+         if (!segments.containsKey(segment)) segments.put(segment, channel.map(FileChannel.MapMode.READ_ONLY, segment * SEGMENT_SIZE, SEGMENT_SIZE));
+      }
+   }
+
+   private int write(ByteBuffer bytes, long position) throws IOException {
+      int count = 0;
+      while (bytes.hasRemaining()) {
+         count += channel.write(bytes, position + count);
+      }
+      return count;
+   }
+
+   /**
+    * Release a mapped segment now rather than when it is collected, so the file can be deleted; the
+    * buffer must not be used afterwards.  Uses jdk internals, so does nothing where they aren't there
+    */
+   private static void unmap(MappedByteBuffer buffer) {
+      try {
+         // Java 9 and later
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Field field = unsafeClass.getDeclaredField("theUnsafe");
+         field.setAccessible(true);
+         unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+         return;
+      } catch (Exception e) {
+         // Fall through to the java 8 way
+      }
+      try {
+         Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+         cleanerMethod.setAccessible(true);
+         Object cleaner = cleanerMethod.invoke(buffer);
+         if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+      } catch (Exception e) {
+         // Left for the garbage collector
+      }
+   }
+
+   private void encode(Object value) {
+      if (value == null) {
+         ensure(1).put(NULL);
+      } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+         ensure(5).put(INT).putInt(((Number) value).intValue());
+      } else if (value instanceof Long) {
+         ensure(9).put(LONG).putLong((Long) value);
+      } else if (value instanceof Double) {
+         ensure(9).put(DOUBLE).putDouble((Double) value);
+      } else if (value instanceof Float) {
+         ensure(5).put(FLOAT).putFloat((Float) value);
+      } else if (value instanceof java.util.Date) {
+         ensure(9).put(TIMESTAMP).putLong(((java.util.Date) value).getTime());
+      } else if (value instanceof Boolean) {
+         ensure(2).put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+      } else {
+         byte[] bytes = value.toString().getBytes(UTF8);
+         ensure(5 + bytes.length).put(value instanceof BigDecimal ? DECIMAL : STRING).putInt(bytes.length).put(bytes);
+      }
+   }
+
+   private ByteBuffer ensure(int needed) {
+      if (rowBuffer.remaining() < needed) {
+         ByteBuffer bigger = ByteBuffer.allocate(Math.max(rowBuffer.capacity() * 2, rowBuffer.position() + needed));
+         rowBuffer.flip();
+         bigger.put(rowBuffer);
+         rowBuffer = bigger;
+      }
+      return rowBuffer;
+   }
+
+   private Object[] decode(ByteBuffer bytes) {
+      Object[] values = new Object[decoded == null ? 16 : decoded.length];
+      int column = 0;
+      while (bytes.hasRemaining()) {
+         if (column == values.length) values = Arrays.copyOf(values, column * 2);
+         values[column++] = decodeValue(bytes);
+      }
+      return Arrays.copyOf(values, column);
+   }
+
+   private Object decodeValue(ByteBuffer bytes) {
+      byte tag = bytes.get();
+      switch (tag) {
+         case NULL:
+            return null;
+         case INT:
+            return bytes.getInt();
+         case LONG:
+            return bytes.getLong();
+         case DOUBLE:
+            return bytes.getDouble();
+         case FLOAT:
+            return bytes.getFloat();
+         case TIMESTAMP:
+            return new Timestamp(bytes.getLong());
+         case BOOLEAN:
+            return bytes.get() != 0;
+         case DECIMAL:
+         case STRING:
+            byte[] string = new byte[bytes.getInt()];
+            bytes.get(string);
+            return (tag == DECIMAL) ? new BigDecimal(new String(string, UTF8)) : new String(string, UTF8);
+         default:
+            throw new IllegalStateException("Corrupt result spill file " + file);
+      }
+   }
+}
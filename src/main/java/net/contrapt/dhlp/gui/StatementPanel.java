@@ -2,29 +2,39 @@ package net.contrapt.dhlp.gui;
 
 import net.contrapt.dhlp.common.ConnectionPool;
 
+import java.util.HashMap;
+import java.util.Map;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
 * A panel which shows results from a sql statement in a table, the text of the sql statement in a text area and
-* status information.
-* @@ Allow for fetching limited number of rows
-* @@ Support prepared statement parameters and parameter metadata (1.4)
+* status information.  Values for any bind parameters are asked for each time the statement runs.
 */
 public class StatementPanel extends SQLPanel {
    
    private StatementResultTableModel model;
    private String sql;
+   // Seconds a statement may run in this tab; negative until chosen, to use the connection's setting
+   private int queryTimeout = -1;
+   // Values entered for bind parameters, offered again when the statement is changed and rerun
+   private Map<String, String> parameterValues = new HashMap<String, String>();
    
    public StatementPanel(ConnectionPool pool, String sql) {
       this.sql = sql;
       model = new StatementResultTableModel(pool, sql);
+      model.setParameterValues(parameterValues);
       initialize();
    }
 
    public void reset(ConnectionPool pool, String sql) {
       this.sql = sql;
+      SQLModel previous = model;
       model = new StatementResultTableModel(pool, sql);
-      reinit();
+      model.setQueryTimeout(queryTimeout);
+      model.setParameterValues(parameterValues);
+      reinit(previous);
    }
    
    @Override
@@ -36,5 +46,17 @@ public class StatementPanel extends SQLPanel {
    public JComponent getComponent() {
       return model.getTable();
    }
+
+   @Override
+   protected void addOptions(JPanel options) {
+      addTimeoutOption(options, model.getQueryTimeout(), TimeoutListener);
+   }
+
+   private ChangeListener TimeoutListener = new ChangeListener() {
+      public void stateChanged(ChangeEvent e) {
+         queryTimeout = (Integer) ((JSpinner) e.getSource()).getValue();
+         model.setQueryTimeout(queryTimeout);
+      }
+   };
    
 }
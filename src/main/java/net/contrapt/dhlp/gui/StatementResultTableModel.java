@@ -1,15 +1,26 @@
 package net.contrapt.dhlp.gui;
 
 import net.contrapt.dhlp.common.ConnectionPool;
+import net.contrapt.dhlp.common.QueryHistory;
+import net.contrapt.dhlp.common.SqlParameters;
+import net.contrapt.dhlp.common.SqlScript;
+import net.contrapt.dhlp.common.StatementWatchdog;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.lang.Math;
+import java.lang.reflect.InvocationTargetException;
 import javax.swing.table.*;
 import java.sql.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.swing.*;
+import javax.swing.Timer;
 
 /**
  * Execute a sql statement and model the result set as a table.
@@ -22,19 +33,56 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    private String sql;
    private Connection connection;
    private ConnectionPool pool;
-   private PreparedStatement statement;
+   private volatile PreparedStatement statement;
+   // The statement re-executed by an export to file, so it can be cancelled
+   private volatile PreparedStatement exportStatement;
    private ResultSet results;
-   private ArrayList<Object[]> rows;
-   private int updateCount = -1;
-   private boolean executing = false;
-   private boolean fetching = false;
-   private int fetchBatchSize = 500;
-   private int fetchSleepTime = 1000;
+   // Replaced on the event thread; the fetching thread adds rows to it
+   private volatile ResultStore rows;
+   // Rows of the store the table has been told about; only changed on the event thread
+   private volatile int visibleRows;
+   private volatile ColumnDescriptor[] columns;
+   private volatile int updateCount = -1;
+   // The fetch size settled on by the last fetch, used to start the next execution
+   private int fetchSize;
+   private volatile boolean executing = false;
+   private volatile boolean fetching = false;
+   // Set by cancel() while executing or fetching so the running work stops
+   private volatile boolean cancelled = false;
+   // Seconds a statement may run for this tab; negative means use the connection's setting
+   private volatile int queryTimeout = -1;
+   // Gathers the rows fetched for the result cache, if the query can be cached
+   private volatile ResultCache.Collector collector;
+   // Age of the cached result shown, or negative if the query was run
+   private volatile long cacheAge = -1;
+   // Whether this tab's connection may have changes not yet committed or rolled back; its queries
+   // then see data other connections can't, so they neither use nor fill the shared result cache
+   private volatile boolean uncommitted;
+   // The statement's bind parameters, the values last entered for them and the values last bound
+   private SqlParameters parameters;
+   private Map<String, String> parameterValues = new HashMap<String, String>();
+   private volatile Object[] boundValues;
+   private volatile int[] boundTypes;
+   // Timings of the current execution for the query history, recorded once its rows are all fetched
+   // or the cursor is given up; nanoseconds, negative until known
+   private volatile boolean historyPending;
+   private long historyStart;
+   private long executeNanos;
+   private long firstRowNanos;
+   private long fetchNanos;
+   // Rows fetched from the current results, and whether the cursor has run out
+   private volatile int held;
+   private volatile boolean exhausted;
    private JTable table;
    private TableColumnModel columnModel;
 
+   // Fetched rows are published to the table at most this often (ms)
+   private static final int PUBLISH_INTERVAL = 75;
+
    private static String DEFAULT_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-   private static SimpleDateFormat dateFormat = new SimpleDateFormat(DEFAULT_DATE_FORMAT);
+   private static volatile String datePattern = DEFAULT_DATE_FORMAT;
+   // SimpleDateFormat isn't thread safe, so each thread formatting dates gets its own
+   private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>();
 
    //
    // CONSTRUCTORS
@@ -72,6 +120,14 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
     */
    public void setSql(String sql) {
       this.sql = sql;
+      this.parameters = null;
+   }
+
+   /**
+    * Share the values entered for bind parameters, so they are offered again next time
+    */
+   public void setParameterValues(Map<String, String> parameterValues) {
+      this.parameterValues = parameterValues;
    }
 
    /**
@@ -82,120 +138,401 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    }
 
    /**
-    * Excecute the sql statement for this table model
+    * Seconds a statement may run before it is cancelled, zero for no timeout
+    */
+   public int getQueryTimeout() {
+      return (queryTimeout < 0) ? pool.getQueryTimeout() : queryTimeout;
+   }
+
+   /**
+    * Override the connection's query timeout for this tab
+    */
+   public void setQueryTimeout(int seconds) {
+      this.queryTimeout = seconds;
+   }
+
+   /**
+    * Excecute the sql statement for this table model; the most rows held is passed to the database so
+    * it doesn't produce rows which won't be fetched
     */
-   public void execute() {
+   public void execute(boolean limited) {
       if (sql == null) return;
-      connection = connection == null ? pool.takeConnection() : connection;
+      cancelled = false;
+      executing = true;
+      try {
+         execute(limited ? pool.getFetchLimit() : 0);
+      } finally {
+         executing = false;
+      }
+   }
+
+   private void execute(int limit) {
+      collector = null;
+      cacheAge = -1;
+      List<Object> values = getParameters().isEmpty() ? Collections.emptyList() : Arrays.asList(bindParameters());
+      ResultCache cache = (ResultCache.isCacheable(sql) && !uncommitted) ? ResultCache.forPool(pool) : null;
+      if (cache != null) {
+         ResultCache.Entry cached = cache.get(sql, values);
+         if (cached != null) {
+            showCached(cached);
+            return;
+         }
+         collector = cache.collect(sql, values);
+      }
+      connection = connection == null ? pool.takeConnection(this) : connection;
       if (connection == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      StatementWatchdog.Watch watch = null;
       try {
-         if (statement == null) statement = connection.prepareStatement(sql);
-         if (rows == null) rows = new ArrayList<Object[]>();
-         else {
-            rows.clear();
-            updateCount = -1;
-            fireTableDataChanged();
+         if (statement == null) statement = pool.prepareStatement(connection, getParameters().getSql());
+         checkCancelled();
+         runOnEventThread(new Runnable() {
+            @Override
+            public void run() {
+               closeRows();
+               updateCount = -1;
+               fireTableDataChanged();
+            }
+         });
+         held = 0;
+         exhausted = false;
+         statement.setMaxRows(Math.max(0, pool.getMaxRowsHeld()));
+         setFetchSize(statement, fetchSize);
+         int timeout = getQueryTimeout();
+         StatementWatchdog.setQueryTimeout(statement, timeout);
+         checkCancelled();
+         finishHistory();
+         long start = System.nanoTime();
+         watch = StatementWatchdog.getInstance().watch(pool, connection, statement, timeout);
+         try {
+            statement.execute();
+         } finally {
+            watch.done();
+            if (!SqlScript.isReadOnly(sql)) {
+               uncommitted |= !isAutoCommit();
+               pool.dataChanged();
+            }
          }
-         executing = true;
-         statement.execute();
+         if (watch.isEvicted()) throw new SQLException("Connection closed by the statement watchdog");
+         pool.getMetrics().getExecute().recordSince(start);
          updateCount = statement.getUpdateCount();
          if (results != null) results.close();
          results = statement.getResultSet();
-         executing = false;
-         if (table.getColumnModel().getColumnCount() == 0) {
-            table.setAutoCreateColumnsFromModel(true);
-            fireTableStructureChanged();
-            setColumnAttributes();
+         startHistory(start, System.nanoTime() - start);
+         if (results == null) collector = null;
+         final ColumnDescriptor[] descriptors = (results == null) ? null : ColumnDescriptor.describe(results.getMetaData());
+         if (results != null && fetchSize == 0) {
+            fetchSize = AdaptiveFetchSize.initialSize(descriptors, limit);
+            setFetchSize(results, fetchSize);
          }
+         final ResultStore store = (results == null) ? null : new ResultStore(descriptors, pool.getSpillRows(), pool.getSpillBytes());
+         runOnEventThread(new Runnable() {
+            @Override
+            public void run() {
+               closeRows();
+               rows = store;
+               columns = descriptors;
+               if (table.getColumnModel().getColumnCount() > 0) return;
+               table.setAutoCreateColumnsFromModel(true);
+               fireTableStructureChanged();
+               setColumnAttributes();
+            }
+         });
       } catch (SQLException e) {
-         throw new IllegalStateException("Error executing sql statement\n" + sql, e);
+         collector = null;
+         if (watch != null && watch.isEvicted()) abandonConnection();
+         else if (cancelled) rollbackCancelled();
+         String message = (watch != null && watch.isCancelled()) ? watch.getDescription() : "Error executing sql statement";
+         throw new IllegalStateException(message + "\n" + sql, e);
       }
    }
 
    /**
-    * Fetch the rows from the result set
+    * Fetch rows from the result set as fast as the driver allows; rows are stored (and spilled to disk)
+    * on this thread, and the event thread tells the table about them in batches.  When limited, a page of the fetch limit is fetched and
+    * the cursor is left open for the next page.  Each fetch is held to the query timeout like the
+    * execution.  Returns once all the fetched rows are in the table
     */
    public void fetch(boolean limited) {
-      if (results == null) return;
+      if (!hasMore()) return;
       fetching = true;
-      List<Object[]> tempRows = new ArrayList<Object[]>(fetchBatchSize);
-      int lastRow = 0;
+      long start = System.nanoTime();
+      RowPublisher publisher = new RowPublisher();
+      publisher.start();
+      StatementWatchdog.Watch watch = StatementWatchdog.getInstance().watch(pool, connection, statement, getQueryTimeout());
       try {
-         int columnCount = results.getMetaData().getColumnCount();
-         while (results != null && results.next()) {
-            Object[] row = new Object[columnCount];
-            for (int j = 0; j < columnCount; j++) {
-               row[j] = convertToDisplay(results, j + 1);
-            }
-            tempRows.add(row);
-            if ( limited && tempRows.size() == pool.getFetchLimit() ) {
-               addRows(tempRows, lastRow);
-               tempRows.clear();
-               return;
+         ColumnDescriptor[] columns = this.columns;
+         ResultStore store = rows;
+         int limit = limited ? pool.getFetchLimit() : 0;
+         int maxHeld = pool.getMaxRowsHeld();
+         int fetched = 0;
+         AdaptiveFetchSize sizer = new AdaptiveFetchSize(results.getFetchSize() > 0 ? results.getFetchSize() : fetchSize, columns);
+         sizer.start();
+         while (results != null && !cancelled && (maxHeld <= 0 || held < maxHeld)) {
+            long before = System.nanoTime();
+            if (!results.next()) {
+               exhausted = true;
+               break;
             }
-            else if (tempRows.size() % fetchBatchSize == 0) {
-               addRows(tempRows, lastRow);
-               tempRows.clear();
-               lastRow = rows.size();
-               sleep(fetchSleepTime);
+            long fetchNanos = System.nanoTime() - before;
+            Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+               row[j] = read(columns[j], results, j + 1);
             }
-            if (results == null) break;
+            store.add(row);
+            if (collector != null) collector.add(row);
+            if (held == 0 && historyPending) firstRowNanos = System.nanoTime() - historyStart;
+            held++;
+            if (++fetched == limit) break;
+            if (sizer.rowFetched(fetchNanos)) setFetchSize(results, sizer.getFetchSize());
+         }
+         fetchSize = sizer.getFetchSize();
+         // Only a complete result is cached
+         if (collector != null && (exhausted || !hasMore())) {
+            if (exhausted && !cancelled) collector.finish(columns);
+            collector = null;
          }
-         if (tempRows.size() > 0) addRows(tempRows, lastRow);
       } catch (SQLException e) {
-         throw new IllegalStateException("Error fetching query rows", e);
+         collector = null;
+         if (watch.isEvicted()) abandonConnection();
+         throw new IllegalStateException(watch.isCancelled() ? watch.getDescription() : "Error fetching query rows", e);
       } finally {
+         watch.done();
+         if (watch.isEvicted() && connection != null) {
+            collector = null;
+            abandonConnection();
+         }
+         publisher.finish();
+         pool.getMetrics().getFetch().recordSince(start);
+         fetchNanos += System.nanoTime() - start;
          fetching = false;
+         if (cancelled) closeResults();
+         else if (!hasMore()) finishHistory();
+      }
+   }
+
+   /**
+    * Start timing an execution for the query history; a statement without rows is recorded now
+    */
+   private void startHistory(long start, long execute) {
+      historyStart = start;
+      executeNanos = execute;
+      firstRowNanos = -1;
+      fetchNanos = 0;
+      historyPending = true;
+      if (results == null) finishHistory();
+   }
+
+   /**
+    * Record the pending execution in the query history; the fetch time is only known if every row
+    * was fetched
+    */
+   private synchronized void finishHistory() {
+      if (!historyPending) return;
+      historyPending = false;
+      boolean complete = results == null || exhausted;
+      long rows = (results == null) ? Math.max(0, updateCount) : held;
+      QueryHistory.getInstance().record(pool.getName(), sql, executeNanos, firstRowNanos, complete ? fetchNanos : -1, rows);
+   }
+
+   /**
+    * Return the bind parameters found in the statement
+    */
+   private SqlParameters getParameters() {
+      if (parameters == null) parameters = SqlParameters.parse(sql);
+      return parameters;
+   }
+
+   /**
+    * Prepare the statement, ask for the values of its parameters using the types from the parameter
+    * meta data and bind them; the prepared statement is reused while the sql stays the same, so the
+    * database can reuse its plan for new values
+    */
+   private Object[] bindParameters() {
+      connection = connection == null ? pool.takeConnection(this) : connection;
+      if (connection == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      try {
+         final SqlParameters parameters = getParameters();
+         if (statement == null) statement = pool.prepareStatement(connection, parameters.getSql());
+         final int[] types = parameters.getTypes(statement);
+         final String[] typeNames = parameters.getTypeNames(statement, types);
+         final String[][] texts = new String[1][];
+         runOnEventThread(new Runnable() {
+            @Override
+            public void run() {
+               texts[0] = ParameterDialog.prompt(table, parameters.getNames(), typeNames, parameterValues);
+            }
+         });
+         if (texts[0] == null) throw new IllegalStateException("Cancelled\n" + sql);
+         Object[] values = parameters.convert(texts[0], types);
+         parameters.bind(statement, values, types);
+         boundValues = values;
+         boundTypes = types;
+         return values;
+      } catch (SQLException e) {
+         throw new IllegalStateException("Error binding parameters\n" + sql, e);
+      }
+   }
+
+   /**
+    * Show a cached result in place of running the query
+    */
+   private void showCached(ResultCache.Entry cached) {
+      final ColumnDescriptor[] descriptors = cached.getColumns();
+      final Object[][] cachedRows = cached.getRows();
+      closeResults();
+      final ResultStore store = new ResultStore(descriptors, pool.getSpillRows(), pool.getSpillBytes());
+      for (Object[] row : cachedRows) {
+         store.add(row);
       }
+      runOnEventThread(new Runnable() {
+         @Override
+         public void run() {
+            closeRows();
+            updateCount = -1;
+            rows = store;
+            visibleRows = store.size();
+            columns = descriptors;
+            if (table.getColumnModel().getColumnCount() == 0) {
+               table.setAutoCreateColumnsFromModel(true);
+               fireTableStructureChanged();
+               setColumnAttributes();
+            }
+            fireTableDataChanged();
+         }
+      });
+      held = cachedRows.length;
+      exhausted = true;
+      cacheAge = cached.getAge();
    }
 
    /**
-    * Sleep for given number of milliseconds unless interrupted
+    * Whether the cursor is open with more rows to fetch, short of the most rows held
     */
-   private void sleep(long milliseconds) {
+   public boolean hasMore() {
+      int maxHeld = pool.getMaxRowsHeld();
+      return results != null && !exhausted && (maxHeld <= 0 || held < maxHeld);
+   }
+
+   /**
+    * The fetch size is only a hint, so drivers which reject it are ignored
+    */
+   private void setFetchSize(Statement statement, int size) {
       try {
-         Thread.currentThread().sleep(milliseconds);
+         statement.setFetchSize(size);
+      } catch (SQLException e) {
+         System.err.println(getClass() + ".setFetchSize(): " + e);
+      }
+   }
+
+   private void setFetchSize(ResultSet rows, int size) {
+      try {
+         if (rows != null) rows.setFetchSize(size);
+      } catch (SQLException e) {
+         System.err.println(getClass() + ".setFetchSize(): " + e);
+      }
+   }
+
+   /**
+    * Run the task on the event thread and wait for it to finish
+    */
+   private void runOnEventThread(Runnable task) {
+      if (SwingUtilities.isEventDispatchThread()) {
+         task.run();
+         return;
+      }
+      try {
+         SwingUtilities.invokeAndWait(task);
       } catch (InterruptedException e) {
-         System.out.println(Thread.currentThread() + " interrupted: " + e);
+         Thread.currentThread().interrupt();
+      } catch (InvocationTargetException e) {
+         throw new IllegalStateException("Error updating table", e.getCause());
       }
    }
 
    /**
-    * Add rows to the table model
+    * Discard the rows, deleting any spill file; runs on the event thread
     */
-   private void addRows(Collection<Object[]> rowsToAdd, int start) {
-      rows.addAll(rowsToAdd);
-      fireTableRowsInserted(start, rows.size() - 1);
+   private void closeRows() {
+      if (rows != null) rows.close();
+      rows = null;
+      visibleRows = 0;
    }
 
    /**
-    * Cancel the current statement if possible
+    * Cancel the running statement or export.  This runs alongside the task it is cancelling, so the
+    * connection is left alone; the task rolls back once its statement returns.  An idle cursor is
+    * just closed
     */
    public void cancel() {
+      if (executing || fetching) cancelled = true;
+      cancel(exportStatement);
+      cancel(statement);
+      if (!executing && !fetching) closeResults();
+   }
+
+   private void cancel(Statement running) {
       try {
-         if (statement != null) {
-            statement.cancel();
-            connection.rollback();
-         }
+         if (running != null) running.cancel();
       } catch (SQLException e) {
          System.err.println(getClass() + ".cancel(): " + e);
       }
+   }
+
+   private void closeResults() {
+      finishHistory();
       try {
          if (results != null) results.close();
       } catch (SQLException e) {
-         System.err.println(getClass() + ".cancel(): " + e);
+         System.err.println(getClass() + ".closeResults(): " + e);
       }
       results = null;
    }
 
+   private void checkCancelled() {
+      if (cancelled) throw new IllegalStateException("Cancelled\n" + sql);
+   }
+
+   /**
+    * End the transaction of a cancelled statement, which some databases leave unusable until then
+    */
+   private void rollbackCancelled() {
+      try {
+         if (connection != null && !connection.getAutoCommit()) connection.rollback();
+      } catch (SQLException e) {
+         System.err.println(getClass() + ".rollbackCancelled(): " + e);
+      }
+   }
+
+   /**
+    * Forget a connection the watchdog closed; the next execution borrows a new one
+    */
+   private void abandonConnection() {
+      results = null;
+      statement = null;
+      connection = null;
+      uncommitted = false;
+   }
+
+   private boolean isAutoCommit() {
+      try {
+         return connection != null && connection.getAutoCommit();
+      } catch (SQLException e) {
+         return false;
+      }
+   }
+
    /**
     * Commit the current connection
     */
    public void commit() {
       try {
          if (connection != null) connection.commit();
+         uncommitted = false;
       } catch (SQLException e) {
          throw new IllegalStateException("Error committing transaction", e);
+      } finally {
+         // Results cached by other tabs before the commit no longer hold
+         pool.dataChanged();
       }
    }
 
@@ -205,8 +542,11 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    public void rollback() {
       try {
          if (connection != null) connection.rollback();
+         uncommitted = false;
       } catch (SQLException e) {
          throw new IllegalStateException("Error rolling back transaction", e);
+      } finally {
+         pool.dataChanged();
       }
    }
 
@@ -236,18 +576,94 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    }
 
    /**
-    * Close resources used by this model
+    * Re-execute the query on a connection of its own and write every row straight to the file without
+    * holding them in memory; returns the number of rows written.  The tab's own cursor may still be
+    * open, which some drivers can't have alongside another on the same connection.  A value which
+    * can't be read stops the export and the partly written file is deleted
     */
-   public void close() {
-      cancel();
+   public long export(File file, ResultExporter.Format format, boolean gzip) {
+      if (sql == null) return 0;
+      if (columns == null) throw new IllegalStateException("Only a query which has returned rows can be exported\n" + sql);
+      Connection db = pool.takeConnection(this);
+      if (db == null) throw new IllegalStateException("Error connecting to " + pool.getURL());
+      PreparedStatement export = null;
+      ResultSet exported = null;
+      ResultExporter exporter = null;
+      StatementWatchdog.Watch watch = null;
       try {
-         if (statement != null) statement.close();
+         export = pool.prepareStatement(db, getParameters().getSql());
+         if (!getParameters().isEmpty()) {
+            if (boundValues == null) throw new IllegalStateException("Run the statement to choose its parameters before exporting\n" + sql);
+            getParameters().bind(export, boundValues, boundTypes);
+         }
+         exportStatement = export;
+         export.setMaxRows(0);
+         StatementWatchdog.setQueryTimeout(export, getQueryTimeout());
+         watch = StatementWatchdog.getInstance().watch(pool, db, export, getQueryTimeout());
+         try {
+            export.execute();
+         } finally {
+            watch.done();
+         }
+         exported = export.getResultSet();
+         if (exported == null) throw new IllegalStateException("Statement returned no rows to export\n" + sql);
+         ColumnDescriptor[] columns = ColumnDescriptor.describe(exported.getMetaData());
+         AdaptiveFetchSize sizer = new AdaptiveFetchSize(AdaptiveFetchSize.initialSize(columns, 0), columns);
+         setFetchSize(exported, sizer.getFetchSize());
+         exporter = new ResultExporter(file, format, gzip, columns, datePattern);
+         exporter.writeHeader();
+         Object[] row = new Object[columns.length];
+         sizer.start();
+         while (true) {
+            long before = System.nanoTime();
+            if (!exported.next()) break;
+            long fetchNanos = System.nanoTime() - before;
+            for (int j = 0; j < columns.length; j++) {
+               row[j] = readExported(columns[j], exported, j + 1, exporter.getRows() + 1);
+            }
+            exporter.writeRow(row);
+            if (sizer.rowFetched(fetchNanos)) setFetchSize(exported, sizer.getFetchSize());
+         }
+         exporter.finish();
+         long written = exporter.getRows();
+         exporter = null;
+         return written;
       } catch (SQLException e) {
-         System.err.println(getClass() + ".close(): " + e);
+         throw new IllegalStateException("Error exporting rows to " + file, e);
+      } catch (IOException e) {
+         throw new IllegalStateException("Error exporting rows to " + file, e);
+      } finally {
+         if (exporter != null) {
+            exporter.close();
+            if (!file.delete()) System.err.println(getClass() + ".export(): could not delete " + file);
+         }
+         try {
+            if (exported != null) exported.close();
+         } catch (SQLException e) {
+            System.err.println(getClass() + ".export(): " + e);
+         }
+         exportStatement = null;
+         pool.releaseStatement(db, export);
+         pool.returnConnection(db);
       }
+   }
+
+   /**
+    * Close resources used by this model
+    */
+   public void close() {
+      cancel();
+      pool.releaseStatement(connection, statement);
       statement = null;
       pool.returnConnection(connection);
       connection = null;
+      uncommitted = false;
+      runOnEventThread(new Runnable() {
+         @Override
+         public void run() {
+            closeRows();
+         }
+      });
    }
 
    //
@@ -258,40 +674,22 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
     * Tells the table view how many columns we have
     */
    public int getColumnCount() {
-      try {
-         return (results == null) ? 0 : results.getMetaData().getColumnCount();
-      } catch (SQLException e) {
-         return 0;
-      }
+      ColumnDescriptor[] columns = this.columns;
+      return (columns == null) ? 0 : columns.length;
    }
 
    @Override
    public String getColumnName(int column) {
-      try {
-         if (results == null || column >= results.getMetaData().getColumnCount()) return "?";
-         else return results.getMetaData().getColumnName(column + 1);
-      } catch (Exception e) {
-         return "?";
-      }
+      ColumnDescriptor[] columns = this.columns;
+      if (columns == null || column >= columns.length) return "?";
+      else return columns[column].getName();
    }
 
    @Override
    public Class getColumnClass(int column) {
-      try {
-         if (results == null || column >= results.getMetaData().getColumnCount()) return String.class;
-         switch (results.getMetaData().getColumnType(column + 1)) {
-            case Types.DATE:
-            case Types.TIMESTAMP:
-            case Types.TIME:
-               return String.class;
-            case Types.OTHER:
-               return String.class;
-            default:
-               return Class.forName(results.getMetaData().getColumnClassName(column + 1));
-         }
-      } catch (Exception e) {
-         return String.class;
-      }
+      ColumnDescriptor[] columns = this.columns;
+      if (columns == null || column >= columns.length) return String.class;
+      return columns[column].getColumnClass();
    }
 
    /**
@@ -300,7 +698,7 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    public int getRowCount() {
       if (updateCount >= 0) return updateCount;
       if (rows == null) return 0;
-      return rows.size();
+      return visibleRows;
    }
 
    /**
@@ -308,7 +706,8 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
     */
    public Object getValueAt(int row, int column) {
       if (rows == null) return null;
-      return (row < rows.size()) ? (rows.get(row))[column] : null;
+      Object value = rows.get(row, column);
+      return (value instanceof java.util.Date) ? formatDate((java.util.Date) value) : value;
    }
 
    //
@@ -326,7 +725,7 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
     * Return a string describing whether rows were selected or affected by DML
     */
    public String getAction() {
-      return getRowCount() + " " + getRowString() + ((updateCount >= 0) ? " affected" : " retrieved"+getHasMoreText());
+      return getRowCount() + " " + getRowString() + ((updateCount >= 0) ? " affected" : " retrieved"+getSpilledText()+getHasMoreText()+getCacheText());
    }
 
    /**
@@ -364,28 +763,33 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
       else return "rows";
    }
 
+   private String getSpilledText() {
+      return (rows != null && rows.isSpilled()) ? " (spilled to disk)" : "";
+   }
+
+   private String getCacheText() {
+      long age = cacheAge;
+      return (age < 0) ? "" : " served from cache (age " + TimeUnit.MILLISECONDS.toSeconds(age) + "s)";
+   }
+
    private String getHasMoreText() {
-      try {
-         return !results.isAfterLast() ? "...more available" : "";
-      }
-      catch (Exception e) {
-         return "";
-      }
+      if (hasMore()) return "...more available";
+      int maxHeld = pool.getMaxRowsHeld();
+      return (maxHeld > 0 && held >= maxHeld) ? "...row limit reached" : "";
    }
 
    /**
     * Use result set meta data to set column attributes in the column model
     */
-   private void setColumnAttributes() throws SQLException {
-      if (results == null) return;
-      ResultSetMetaData meta = results.getMetaData();
+   private void setColumnAttributes() {
+      if (columns == null) return;
       int charWidth = table.getFontMetrics(table.getFont()).charWidth('A');
-      for (int i = 0; i < meta.getColumnCount(); i++) {
-         int headerLength = meta.getColumnLabel(i + 1).length();
-         int valueLength = 3 * meta.getColumnDisplaySize(i + 1);
+      for (int i = 0; i < columns.length; i++) {
+         int headerLength = columns[i].getLabel().length();
+         int valueLength = 3 * columns[i].getDisplaySize();
          int maxLength = Math.max(valueLength, headerLength);
          TableColumn column = columnModel.getColumn(i);
-         column.setHeaderValue(meta.getColumnLabel(i + 1));
+         column.setHeaderValue(columns[i].getLabel());
          column.setMinWidth(0);
          column.setMaxWidth(maxLength * charWidth * 2);
          column.setPreferredWidth(headerLength * charWidth);
@@ -395,40 +799,100 @@ public class StatementResultTableModel extends AbstractTableModel implements SQL
    }
 
    /**
-    * Convert certain objects (esp date/timestamp) returned from sql to appropriate
-    * displayable objects
+    * Read a value with the column's converter; dates are kept as timestamps and formatted for display
     */
-   private Object convertToDisplay(ResultSet row, int column) {
-      if (row == null) return null;
+   private Object read(ColumnDescriptor column, ResultSet row, int index) {
       try {
-         switch (row.getMetaData().getColumnType(column)) {
-            case Types.DATE:
-            case Types.TIMESTAMP:
-            case Types.TIME:
-               java.sql.Timestamp value = row.getTimestamp(column);
-               return (value == null) ? null : dateFormat.format(value);
-            case Types.BINARY:
-            case Types.VARBINARY:
-            case Types.LONGVARBINARY:
-            case Types.BLOB:
-            case Types.CLOB:
-            case Types.OTHER:
-               return row.getString(column);
-//               Object o = row.getObject(column);
-//               return (o==null) ? null : o.toString();
-            default:
-               return row.getObject(column);
-         }
+         return column.read(row, index);
       } catch (Exception e) {
          return e.toString();
       }
    }
 
+   /**
+    * Read a value for export; unlike the table, an error can't be shown in place of the value so it
+    * stops the export
+    */
+   private Object readExported(ColumnDescriptor column, ResultSet row, int index, long rowNumber) throws SQLException {
+      try {
+         return column.read(row, index);
+      } catch (SQLException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new SQLException("Error reading " + column.getLabel() + " in row " + rowNumber, e);
+      }
+   }
+
+   /**
+    * Format a date with this thread's formatter for the current pattern
+    */
+   private static String formatDate(java.util.Date date) {
+      String pattern = datePattern;
+      SimpleDateFormat format = dateFormat.get();
+      if (format == null || !format.toPattern().equals(pattern)) {
+         format = new SimpleDateFormat(pattern);
+         dateFormat.set(format);
+      }
+      return format.format(date);
+   }
+
+   /**
+    * Tells the table about the rows the fetching thread has stored, every publish interval, so the
+    * table is updated in a few large batches; only row counts cross to the event thread
+    */
+   private class RowPublisher implements ActionListener {
+
+      private Timer timer = new Timer(PUBLISH_INTERVAL, this);
+      private CountDownLatch published = new CountDownLatch(1);
+      private volatile boolean finished = false;
+
+      void start() {
+         timer.start();
+      }
+
+      /**
+       * Wait for the stored rows to be shown in the table
+       */
+      void finish() {
+         finished = true;
+         if (SwingUtilities.isEventDispatchThread()) {
+            actionPerformed(null);
+            return;
+         }
+         try {
+            published.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      /**
+       * Show the rows stored since last time; runs on the event thread
+       */
+      public void actionPerformed(ActionEvent e) {
+         // Check before counting so rows stored just before finishing aren't missed
+         boolean last = finished;
+         ResultStore store = rows;
+         int size = (store == null) ? 0 : store.size();
+         if (size > visibleRows) {
+            int first = visibleRows;
+            visibleRows = size;
+            fireTableRowsInserted(first, size - 1);
+         }
+         if (last) {
+            timer.stop();
+            published.countDown();
+         }
+      }
+   }
+
    //
    // STATIC
    //
    public static void setDateFormat(String format) {
-      dateFormat = new SimpleDateFormat(format);
+      // Fails here on a bad pattern rather than when the table is painted
+      new SimpleDateFormat(format);
+      datePattern = format;
    }
 
 }
@@ -10,6 +10,7 @@ import org.gjt.sp.util.Log;
 
 import java.io.*;
 import java.util.*;
+import javax.swing.JFileChooser;
 
 
 import net.contrapt.jeditutil.service.InfoTreeService;
@@ -64,6 +65,8 @@ public class DHLPlugin extends EBPlugin {
     */
    public void stop() {
       Log.log(Log.NOTICE, this, "Stopping dhlp");
+      // Stop refreshing the status bar
+      DatabaseStatusService.getInstance().stop();
       // Close all sql result windows
       ConnectionPanel.removePluginPanels(ConnectionPanel.class);
       // Close all database connections
@@ -98,7 +101,7 @@ public class DHLPlugin extends EBPlugin {
       if (initialized) return;
       try {
          DHLPController.getInstance().load();
-         addJars();
+         DHLPController.getInstance().warmPools();
          if (service != null) service.reinit();
          initialized = true;
       } catch (Exception e) {
@@ -169,6 +172,70 @@ public class DHLPlugin extends EBPlugin {
       }
    }
 
+   /**
+    * Execute the current buffer or buffer selection as a script of sql statements
+    */
+   public void execScript(View view) {
+      try {
+         String connection = getConnection(view);
+         if (connection == null) return;
+         ConnectionPanel panel = getConnectionPanel(view, connection);
+         String sql = panel.getSelectedText();
+         if (sql == null) sql = panel.getText();
+         panel.addScript(sql);
+         panel.execute();
+      } catch (Exception e) {
+         handleException(view, EXEC_ACTION_ERROR, new Object[]{"SQL Script", getExceptionString(e)});
+      }
+   }
+
+   /**
+    * Show the query history of the current connection
+    */
+   public void showHistory(View view) {
+      try {
+         String connection = getConnection(view);
+         if (connection == null) return;
+         ConnectionPanel panel = getConnectionPanel(view, connection);
+         panel.addHistory();
+         panel.execute();
+      } catch (Exception e) {
+         handleException(view, EXEC_ACTION_ERROR, new Object[]{"Query History", getExceptionString(e)});
+      }
+   }
+
+   /**
+    * Run the given sql statement repeatedly on several connections at once and report its latencies
+    */
+   public void benchmark(View view) {
+      try {
+         String connection = getConnection(view);
+         if (connection == null) return;
+         ConnectionPanel panel = getConnectionPanel(view, connection);
+         String sql = panel.getSelectedText();
+         if (sql == null) sql = panel.getText();
+         Benchmark benchmark = BenchmarkDialog.prompt(view, panel.getPool(), sql);
+         if (benchmark == null) return;
+         panel.addBenchmark(benchmark);
+         panel.execute();
+      } catch (Exception e) {
+         handleException(view, EXEC_ACTION_ERROR, new Object[]{"Benchmark", getExceptionString(e)});
+      }
+   }
+
+   /**
+    * Fetch the next rows for the current statement in the connection panel
+    */
+   public void fetchRows(View view) {
+      try {
+         ConnectionPanel panel = ConnectionPanel.getPluginPanel(view, ConnectionPanel.class);
+         if (panel == null) return;
+         panel.fetch();
+      } catch (Exception e) {
+         handleException(view, EXEC_ACTION_ERROR, new Object[]{"Fetch Rows", getExceptionString(e)});
+      }
+   }
+
    /**
     * Generate a query plan for the given sql statement
     */
@@ -239,6 +306,15 @@ public class DHLPlugin extends EBPlugin {
                panel.addStatement("select * from " + object.getName());
                panel.execute();
                break;
+            case IMPORT:
+               JFileChooser chooser = new JFileChooser();
+               chooser.setDialogTitle("Import .csv or .tsv (optionally .gz) into " + object.getName());
+               if (chooser.showOpenDialog(view) != JFileChooser.APPROVE_OPTION) break;
+               CsvImporter importer = DHLPController.getInstance().createImporter(connection, object, chooser.getSelectedFile());
+               panel = getConnectionPanel(view, connection);
+               panel.addImport(importer);
+               panel.execute();
+               break;
          }
       } catch (Exception e) {
          handleException(view, EXEC_ACTION_ERROR, new Object[]{"Finding Object", getExceptionString(e)});
@@ -320,27 +396,6 @@ public class DHLPlugin extends EBPlugin {
       GUIUtilities.requestFocus(view, view);
    }
 
-   /**
-    * Add any database driver jar files to jedit classpath
-    */
-   private void addJars() {
-      for (Iterator i = DHLPController.getInstance().getDriverJars().iterator(); i.hasNext(); ) {
-         String jarFile = (String) i.next();
-         addJar(jarFile);
-      }
-   }
-
-   /**
-    * Add a given jar file to jedit's classpath; this will be used to add database driver jar files
-    * to the environment classpath
-    */
-   private void addJar(String jarFile) {
-      if (jarFile == null || jarFile.equals("")) return;
-      PluginJAR jar = jEdit.getPluginJAR(jarFile);
-      if (jar != null) return; // Already added
-      jEdit.addPluginJAR(jarFile);
-   }
-
    private String getExceptionString(Exception e) {
       StringBuilder buf = new StringBuilder(e.toString());
       Throwable c = e.getCause();
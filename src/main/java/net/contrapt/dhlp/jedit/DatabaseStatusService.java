@@ -1,12 +1,17 @@
 package net.contrapt.dhlp.jedit;
 
+import net.contrapt.dhlp.common.ConnectionPool;
 import net.contrapt.dhlp.common.DHLPController;
+import net.contrapt.dhlp.common.TaskExecutor;
 import net.contrapt.jeditutil.service.BufferStatusService;
 import org.gjt.sp.jedit.Buffer;
 import org.gjt.sp.jedit.PluginJAR;
 import org.gjt.sp.jedit.jEdit;
 
 import javax.swing.*;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
+import java.awt.*;
 import java.awt.event.ActionEvent;
 
 /**
@@ -16,11 +21,14 @@ import java.awt.event.ActionEvent;
  * Time: 3:46 PM
  * To change this template use File | Settings | File Templates.
  */
-public class DatabaseStatusService implements BufferStatusService<JComboBox> {
+public class DatabaseStatusService implements BufferStatusService<JPanel> {
 
    private static DatabaseStatusService INSTANCE;
+   private static final int METRICS_REFRESH = 1000;
 
    private JComboBox comboBox;
+   private JLabel metricsLabel;
+   private Timer metricsTimer;
 
    public static DatabaseStatusService getInstance() {
       if ( INSTANCE == null ) INSTANCE = new DatabaseStatusService();
@@ -28,7 +36,7 @@ public class DatabaseStatusService implements BufferStatusService<JComboBox> {
    }
 
    @Override
-   public JComboBox getComponent() {
+   public JPanel getComponent() {
       comboBox = new JComboBox();
       comboBox.setToolTipText("Choose Database Connection");
       comboBox.addItem("");
@@ -39,13 +47,52 @@ public class DatabaseStatusService implements BufferStatusService<JComboBox> {
          @Override
          public void actionPerformed(ActionEvent e) {
             handleConnectionChosen();
+            updateMetrics();
          }
       });
-      return comboBox;
+      metricsLabel = new JLabel();
+      metricsLabel.setFont(metricsLabel.getFont().deriveFont(10.0f));
+      JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+      panel.add(comboBox);
+      panel.add(metricsLabel);
+      // Refresh the pool readout while the status bar is showing
+      stop();
+      final Timer timer = new Timer(METRICS_REFRESH, new AbstractAction() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            updateMetrics();
+         }
+      });
+      metricsTimer = timer;
+      panel.addAncestorListener(new AncestorListener() {
+         @Override
+         public void ancestorAdded(AncestorEvent event) {
+            if (metricsTimer == timer) timer.start();
+         }
+
+         @Override
+         public void ancestorRemoved(AncestorEvent event) {
+            timer.stop();
+         }
+
+         @Override
+         public void ancestorMoved(AncestorEvent event) {
+         }
+      });
+      return panel;
+   }
+
+   /**
+    * Stop refreshing the pool readout; the timer would otherwise keep the plugin's classes alive
+    * after it is unloaded
+    */
+   public void stop() {
+      if (metricsTimer != null) metricsTimer.stop();
+      metricsTimer = null;
    }
 
    @Override
-   public void update(JComboBox c, Buffer buffer, boolean b) {
+   public void update(JPanel c, Buffer buffer, boolean b) {
       String name = buffer.getStringProperty(DHLPlugin.CONNECTION_PROPERTY);
       name = (name==null) ? "" : name;
       setConnection(name);
@@ -63,4 +110,19 @@ public class DatabaseStatusService implements BufferStatusService<JComboBox> {
    public void setConnection(String name) {
       comboBox.getModel().setSelectedItem(name);
    }
+
+   /**
+    * Show the pool metrics for the chosen connection; nothing is shown until the connection is used
+    */
+   private void updateMetrics() {
+      if (metricsLabel == null || DHLPController.getInstance() == null) return;
+      ConnectionPool pool = DHLPController.getInstance().findPool((String) comboBox.getModel().getSelectedItem());
+      if (pool == null) {
+         metricsLabel.setText("");
+         metricsLabel.setToolTipText(null);
+      } else {
+         metricsLabel.setText(pool.getMetrics().getSummary());
+         metricsLabel.setToolTipText("<html>" + (pool.getMetrics().getDescription() + "\n" + TaskExecutor.getInstance().getDescription()).replace("\n", "<br>") + "</html>");
+      }
+   }
 }
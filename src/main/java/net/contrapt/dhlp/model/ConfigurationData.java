@@ -14,6 +14,39 @@ public class ConfigurationData extends BaseModel {
    @JsonProperty
    private int fetchLimit = 5000;
 
+   @JsonProperty
+   private int minIdle = 1;
+
+   @JsonProperty
+   private boolean warmOnStartup = false;
+
+   @JsonProperty
+   private int spillRows = 100000;
+
+   @JsonProperty
+   private int spillMegabytes = 64;
+
+   @JsonProperty
+   private int maxRowsHeld = 1000000;
+
+   @JsonProperty
+   private int queryTimeout = 0;
+
+   @JsonProperty
+   private int resultCacheSeconds = 0;
+
+   @JsonProperty
+   private int resultCacheMegabytes = 32;
+
+   @JsonProperty
+   private int importBatchSize = 1000;
+
+   @JsonProperty
+   private int importCommitBatches = 10;
+
+   @JsonProperty
+   private int importLoaders = 1;
+
    private List<DriverData> drivers = new ArrayList<DriverData>();
 
    private List<ConnectionData> connections = new ArrayList<ConnectionData>();
@@ -34,4 +67,48 @@ public class ConfigurationData extends BaseModel {
       return fetchLimit;
    }
 
+   public int getMinIdle() {
+      return minIdle;
+   }
+
+   public boolean isWarmOnStartup() {
+      return warmOnStartup;
+   }
+
+   public int getSpillRows() {
+      return spillRows;
+   }
+
+   public int getSpillMegabytes() {
+      return spillMegabytes;
+   }
+
+   public int getMaxRowsHeld() {
+      return maxRowsHeld;
+   }
+
+   public int getQueryTimeout() {
+      return queryTimeout;
+   }
+
+   public int getResultCacheSeconds() {
+      return resultCacheSeconds;
+   }
+
+   public int getResultCacheMegabytes() {
+      return resultCacheMegabytes;
+   }
+
+   public int getImportBatchSize() {
+      return importBatchSize;
+   }
+
+   public int getImportCommitBatches() {
+      return importCommitBatches;
+   }
+
+   public int getImportLoaders() {
+      return importLoaders;
+   }
+
 }
\ No newline at end of file
@@ -55,6 +55,54 @@ public class ConnectionData extends BaseModel {
     @JsonProperty
     private List<String> schema;
 
+    @JsonProperty
+    private int maxConnections = 10;
+
+    @JsonProperty
+    private int borrowTimeout = 30;
+
+    @JsonProperty
+    private int validationInterval = 30;
+
+    @JsonProperty
+    private int validationTimeout = 5;
+
+    @JsonProperty
+    private int idleTimeout = 600;
+
+    @JsonProperty
+    private int maxLifetime = 1800;
+
+    @JsonProperty
+    private int statementCacheSize = 25;
+
+    @JsonProperty
+    private int leakDetectionThreshold = 0;
+
+    @JsonProperty
+    private Integer minIdle;
+
+    @JsonProperty
+    private Boolean warmOnStartup;
+
+    @JsonProperty
+    private Integer spillRows;
+
+    @JsonProperty
+    private Integer spillMegabytes;
+
+    @JsonProperty
+    private Integer maxRowsHeld;
+
+    @JsonProperty
+    private Integer queryTimeout;
+
+    @JsonProperty
+    private Integer resultCacheSeconds;
+
+    @JsonProperty
+    private Integer resultCacheMegabytes;
+
     public String getDriver() {
         return driver;
     }
@@ -107,6 +155,10 @@ public class ConnectionData extends BaseModel {
         return sshKeyFile;
     }
 
+    /**
+     * The local end of the ssh tunnel; when null a free port is assigned and substituted for
+     * ${sshLocalPort} in the url
+     */
     public Integer getSshLocalPort() {
         return sshLocalPort;
     }
@@ -123,6 +175,153 @@ public class ConnectionData extends BaseModel {
         return sshPassphrase;
     }
 
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Seconds to wait for a pooled connection when all are in use
+     */
+    public int getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Seconds a connection is trusted after it was last used or validated
+     */
+    public int getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Seconds to wait for a connection validation to complete
+     */
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * Seconds an idle connection above the minimum idle count is kept before it is closed
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Seconds a connection is kept before it is replaced; zero keeps connections forever
+     */
+    public int getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Number of prepared statements cached per connection; zero disables the cache
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Seconds a connection may be borrowed before it is reported as a possible leak with the stack
+     * trace of where it was borrowed; zero disables leak detection
+     */
+    public int getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Number of idle connections to keep open; null means use the global setting
+     */
+    public Integer getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(Integer minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * Whether to open connections when the plugin starts; null means use the global setting
+     */
+    public Boolean getWarmOnStartup() {
+        return warmOnStartup;
+    }
+
+    public void setWarmOnStartup(Boolean warmOnStartup) {
+        this.warmOnStartup = warmOnStartup;
+    }
+
+    /**
+     * Number of rows of a result kept in memory before the rest are written to a temporary file; zero
+     * never spills and null means use the global setting
+     */
+    public Integer getSpillRows() {
+        return spillRows;
+    }
+
+    public void setSpillRows(Integer spillRows) {
+        this.spillRows = spillRows;
+    }
+
+    /**
+     * Megabytes of a result kept in memory before the rest are written to a temporary file; zero
+     * never spills and null means use the global setting
+     */
+    public Integer getSpillMegabytes() {
+        return spillMegabytes;
+    }
+
+    public void setSpillMegabytes(Integer spillMegabytes) {
+        this.spillMegabytes = spillMegabytes;
+    }
+
+    /**
+     * Most rows of a result fetched, however far the results are paged through; zero means no
+     * maximum and null means use the global setting
+     */
+    public Integer getMaxRowsHeld() {
+        return maxRowsHeld;
+    }
+
+    public void setMaxRowsHeld(Integer maxRowsHeld) {
+        this.maxRowsHeld = maxRowsHeld;
+    }
+
+    /**
+     * Seconds a statement may run before it is cancelled; zero means no timeout and null means use
+     * the global setting
+     */
+    public Integer getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(Integer queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Seconds the results of a read only query are reused when it is run again; zero turns the cache
+     * off and null means use the global setting
+     */
+    public Integer getResultCacheSeconds() {
+        return resultCacheSeconds;
+    }
+
+    public void setResultCacheSeconds(Integer resultCacheSeconds) {
+        this.resultCacheSeconds = resultCacheSeconds;
+    }
+
+    /**
+     * Megabytes of cached results kept for the connection; null means use the global setting
+     */
+    public Integer getResultCacheMegabytes() {
+        return resultCacheMegabytes;
+    }
+
+    public void setResultCacheMegabytes(Integer resultCacheMegabytes) {
+        this.resultCacheMegabytes = resultCacheMegabytes;
+    }
+
     public boolean isSsh() {
         return sshHost != null;
     }
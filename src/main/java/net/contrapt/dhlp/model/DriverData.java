@@ -14,6 +14,9 @@ public class DriverData extends BaseModel {
    @JsonProperty
    private String jarFile;
 
+   @JsonProperty
+   private String testQuery;
+
    public String getClassName() {
       return className;
    }
@@ -25,4 +28,11 @@ public class DriverData extends BaseModel {
       return name;
    }
 
+   /**
+    * An optional query used to validate connections instead of Connection.isValid()
+    */
+   public String getTestQuery() {
+      return testQuery;
+   }
+
 }
\ No newline at end of file
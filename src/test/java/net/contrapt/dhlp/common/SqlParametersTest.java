@@ -0,0 +1,54 @@
+package net.contrapt.dhlp.common;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Finding bind parameters, and leaving alone the text which only looks like them
+ */
+public class SqlParametersTest {
+
+   @Test
+   public void namedAndPositionalPlaceholders() {
+      assertParse("select * from t where a = :a and b = ? and c = :a",
+            "select * from t where a = ? and b = ? and c = ?", ":a", "?1");
+   }
+
+   @Test
+   public void quotesCommentsAndCastsAreNotPlaceholders() {
+      assertParse("select ':a', \"?\", x::int from t -- :b ?\n/* :c */ where d = :d",
+            "select ':a', \"?\", x::int from t -- :b ?\n/* :c */ where d = ?", ":d");
+   }
+
+   @Test
+   public void triggerBodiesKeepTheirVariables() {
+      String trigger = "CREATE OR REPLACE TRIGGER trg BEFORE INSERT ON t FOR EACH ROW\nBEGIN\n  :new.id := seq.nextval;\nEND;";
+      assertParse(trigger, trigger);
+      String block = "declare\n  v number := :old.a;\nbegin\n  null;\nend;";
+      assertParse(block, block);
+   }
+
+   @Test
+   public void subscriptsAreNotPlaceholders() {
+      assertParse("select arr[1:n], arr[:2] from t where id = :id",
+            "select arr[1:n], arr[:2] from t where id = ?", ":id");
+   }
+
+   @Test
+   public void dollarQuotesAreNotPlaceholders() {
+      assertParse("create function f(a text) returns bool as $$ select a ? 'k' and :x $$ language sql",
+            "create function f(a text) returns bool as $$ select a ? 'k' and :x $$ language sql");
+      assertParse("select $body$ ? $body$, a$b$c from t where d = ?",
+            "select $body$ ? $body$, a$b$c from t where d = ?", "?1");
+   }
+
+   private void assertParse(String statement, String sql, String... names) {
+      SqlParameters parameters = SqlParameters.parse(statement);
+      assertEquals(parameters.getSql(), sql);
+      assertEquals(parameters.getNames(), (names.length == 0) ? Collections.<String>emptyList() : Arrays.asList(names));
+   }
+}
@@ -0,0 +1,82 @@
+package net.contrapt.dhlp.common;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Splitting scripts into statements, in particular telling procedural blocks, which keep their
+ * semicolons, from statements which only look like them
+ */
+public class SqlScriptTest {
+
+   @Test
+   public void transactionControlSplitsOnSemicolons() {
+      assertSplit("BEGIN;\nupdate t set a = 1;\ninsert into t values (1);\nCOMMIT;",
+            "BEGIN", "update t set a = 1", "insert into t values (1)", "COMMIT");
+      assertSplit("begin transaction;\nupdate t set a = 1;\ncommit;",
+            "begin transaction", "update t set a = 1", "commit");
+      assertSplit("begin work;\ndelete from t;\nrollback;",
+            "begin work", "delete from t", "rollback");
+      assertSplit("BEGIN ISOLATION LEVEL SERIALIZABLE;\nselect 1;\nCOMMIT;",
+            "BEGIN ISOLATION LEVEL SERIALIZABLE", "select 1", "COMMIT");
+   }
+
+   @Test
+   public void createTypeSplitsOnSemicolons() {
+      assertSplit("CREATE TYPE mood AS ENUM ('sad', 'ok');\nselect 1;",
+            "CREATE TYPE mood AS ENUM ('sad', 'ok')", "select 1");
+   }
+
+   @Test
+   public void postgresTriggerSplitsOnSemicolons() {
+      assertSplit("CREATE TRIGGER trg BEFORE UPDATE ON t FOR EACH ROW WHEN (OLD.x IS DISTINCT FROM NEW.x) EXECUTE PROCEDURE f();\nselect 2;",
+            "CREATE TRIGGER trg BEFORE UPDATE ON t FOR EACH ROW WHEN (OLD.x IS DISTINCT FROM NEW.x) EXECUTE PROCEDURE f()", "select 2");
+   }
+
+   @Test
+   public void postgresFunctionsSplitOnSemicolons() {
+      assertSplit("create function f() returns int as 'select 1' language sql;\nselect 7;",
+            "create function f() returns int as 'select 1' language sql", "select 7");
+      assertSplit("create function f() returns int as $$ select 1; $$ language sql;\nselect 8;",
+            "create function f() returns int as $$ select 1; $$ language sql", "select 8");
+   }
+
+   @Test
+   public void cursorDeclarationSplitsOnSemicolons() {
+      assertSplit("DECLARE c CURSOR FOR select * from t;\nFETCH 10 FROM c;",
+            "DECLARE c CURSOR FOR select * from t", "FETCH 10 FROM c");
+   }
+
+   @Test
+   public void anonymousBlocksEndAtSlash() {
+      assertSplit("begin\n  null;\nend;\n/\nselect 5 from dual;",
+            "begin\n  null;\nend;", "select 5 from dual");
+      assertSplit("declare\n  v number;\nbegin\n  select 1 into v from dual;\nend;\n/\nselect 4 from dual;",
+            "declare\n  v number;\nbegin\n  select 1 into v from dual;\nend;", "select 4 from dual");
+   }
+
+   @Test
+   public void storedCodeEndsAtSlash() {
+      assertSplit("create or replace procedure p is\nbegin\n  update t set a = 1;\n  commit;\nend;\n/\nselect 3 from dual;",
+            "create or replace procedure p is\nbegin\n  update t set a = 1;\n  commit;\nend;", "select 3 from dual");
+      assertSplit("create package body pk as\n procedure p is begin null; end;\nend;\n/\nselect 9 from dual;",
+            "create package body pk as\n procedure p is begin null; end;\nend;", "select 9 from dual");
+      assertSplit("create or replace trigger trg before insert on t for each row\nbegin\n  :new.id := s.nextval;\nend;\n/\nselect 6 from dual;",
+            "create or replace trigger trg before insert on t for each row\nbegin\n  :new.id := s.nextval;\nend;", "select 6 from dual");
+   }
+
+   @Test
+   public void tsqlBatchesEndAtGo() {
+      assertSplit("CREATE PROCEDURE p AS\nSELECT 1;\nSELECT 2;\nGO\nselect 3;",
+            "CREATE PROCEDURE p AS\nSELECT 1;\nSELECT 2;", "select 3");
+   }
+
+   private void assertSplit(String script, String... statements) {
+      List<String> split = SqlScript.split(script);
+      assertEquals(split, Arrays.asList(statements));
+   }
+}